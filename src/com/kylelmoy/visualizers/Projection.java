@@ -5,10 +5,12 @@ import java.io.IOException;
 
 import stdlib.StdDraw;
 
+import com.kylelmoy.wrm2eig.ChunkedDataFile;
 import com.kylelmoy.wrm2eig.DataFile;
 public class Projection {
 	static DataFile vec;
 	static DataFile projected;
+	static ChunkedDataFile chunks;
 	static boolean reload = false;
 	static int eig = 48;
 	static int n = 48;
@@ -18,8 +20,8 @@ public class Projection {
 		StdDraw.setYscale(-128,128);
 		StdDraw.show(100);
 		StdDraw.setPenRadius(0.005);
-		vec = new DataFile(new File("data/vectors.dat"));
-		projected = new DataFile(new File("data/n48/48.dat"));
+		vec = DataFile.map(new File("data/vectors.dat"));
+		open(eig);
 		int f = 0;
 		int[] interest = {4,5,6,14,24,36};
 		while (true) {
@@ -28,7 +30,7 @@ public class Projection {
 			}
 			if (StdDraw.isKeyPressed(KeyEvent.VK_SPACE)) {
 				reload = false;
-				projected =  new DataFile(new File("data/n48/" + eig + ".dat"));
+				open(eig);
 				draw(f);
 			}
 			if (StdDraw.isKeyPressed(KeyEvent.VK_UP)) {
@@ -62,7 +64,7 @@ public class Projection {
 			if (StdDraw.isKeyPressed(KeyEvent.VK_S)) {
 				for (int i = 0; i < interest.length; i ++) {
 					eig = interest[i];
-					projected =  new DataFile(new File("data/n48/" + eig + ".dat"));
+					open(eig);
 					draw(f);
 					StdDraw.show(10);
 					StdDraw.save("data/images/frame " + f + " - " + eig + ".png");
@@ -70,7 +72,20 @@ public class Projection {
 			StdDraw.show(100);
 		}
 	}
-	private static void draw(int frame) {
+	private static void open(int eig) throws IOException {
+		//Chunked projections are read a frame at a time, and .dat projections mapped whole when there are none
+		if (chunks != null) {
+			chunks.close();
+			chunks = null;
+		}
+		projected = null;
+		File file = new File("data/n48/" + eig + ".chunks");
+		if (file.exists())
+			chunks = new ChunkedDataFile(file);
+		else
+			projected = DataFile.map(new File("data/n48/" + eig + ".dat"));
+	}
+	private static void draw(int frame) throws IOException {
 		//Draw Worm
 		StdDraw.clear();
 		StdDraw.setPenColor(StdDraw.BLACK);
@@ -113,9 +128,14 @@ public class Projection {
 		StdDraw.setPenRadius(0.005);
 		x = new double[n + 1];
 		y = new double[n + 1];
+		double[] angles = new double[n];
+		if (chunks != null)
+			chunks.read(frame, 1).getCase(0, angles);
+		else
+			projected.get(offset, angles, 0, n);
 		for (int i = 0; i < n; i++) {
-			x[i+1] = x[i] + (dist * Math.cos(projected.get(offset + i)));
-			y[i+1] = y[i] + (dist * Math.sin(projected.get(offset + i)));
+			x[i+1] = x[i] + (dist * Math.cos(angles[i]));
+			y[i+1] = y[i] + (dist * Math.sin(angles[i]));
 		}
 		_x = 0;
 		_y = 0;
@@ -13,7 +13,7 @@ public class Rose {
 	final static int resolution = 72;
 	static int[] histogram;
 	public static void main(String[] args) throws IOException {
-		DataFile vectors = new DataFile(new File("data/Loop/vectors.dat"));
+		DataFile vectors = DataFile.map(new File("data/Loop/vectors.dat"));
 		histogram = new int[resolution];
 		binValues(vectors);
 		StdDraw.show(100);
@@ -0,0 +1,102 @@
+package com.kylelmoy.wrm2eig;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * A <code>DataFile</code> backed by an array on the heap.
+ * @author Kyle Moy
+ *
+ */
+class ArrayDataFile extends DataFile {
+	/**
+	 * Where the data is stored.
+	 */
+	private final transient double[] data;
+
+	/**
+	 * Where this view starts in <code>data</code>
+	 */
+	private final int offset;
+
+	/**
+	 * The length of this view
+	 */
+	private final int length;
+
+	/**
+	 * Construct a new <code>ArrayDataFile</code> around a <code>double[]</code>, without copying it.
+	 * @param data the data
+	 * @param caseLength the length of each individual case
+	 * @param caseCount the number of cases
+	 */
+	ArrayDataFile(double[] data, int caseLength, int caseCount) {
+		this(data, 0, data.length, caseLength, caseCount);
+	}
+
+	/**
+	 * Construct a new <code>ArrayDataFile</code> around a range of a <code>double[]</code>, without copying it.
+	 * @param data the data
+	 * @param offset where the range starts
+	 * @param length the length of the range
+	 * @param caseLength the length of each individual case
+	 * @param caseCount the number of cases
+	 */
+	ArrayDataFile(double[] data, int offset, int length, int caseLength, int caseCount) {
+		super(length, caseLength, caseCount);
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	public double get(int index) {
+		if (index < 0 || index >= length)
+			throw outOfBounds(index);
+		return data[offset + index];
+	}
+
+	@Override
+	public double get(long index) {
+		if (index < 0 || index >= length)
+			throw outOfBounds(index);
+		return data[offset + (int)index];
+	}
+
+	@Override
+	public void get(long index, double[] buffer, int offset, int count) {
+		if (index < 0 || count < 0 || index + count > length)
+			throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+		System.arraycopy(data, this.offset + (int)index, buffer, offset, count);
+	}
+
+	@Override
+	void get(long index, DoubleBuffer buffer, int count) {
+		if (index < 0 || count < 0 || index + count > length)
+			throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+		buffer.put(data, offset + (int)index, count);
+	}
+
+	@Override
+	DataFile view(long index, long length, int caseCount) {
+		return new ArrayDataFile(data, offset + (int)index, (int)length, caseLength(), caseCount);
+	}
+
+	@Override
+	public double[] getColumn(int column, double[] buffer) {
+		int caseLength = caseLength();
+		if (column < 0 || column >= caseLength)
+			throw new IndexOutOfBoundsException("Column: " + column);
+		for (int i = 0, index = offset + column; i < caseCount(); i++, index += caseLength)
+			buffer[i] = data[index];
+		return buffer;
+	}
+
+	/**
+	 * Kept out of line so that <code>get</code> stays small enough to inline.
+	 * @param index the offending index
+	 * @return the exception to throw
+	 */
+	private static IndexOutOfBoundsException outOfBounds(long index) {
+		return new IndexOutOfBoundsException("Index: " + index);
+	}
+}
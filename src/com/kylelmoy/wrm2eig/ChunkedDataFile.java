@@ -0,0 +1,559 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Random access to the frames of a chunked file, as written by <code>ChunkedDataFileWriter</code>, without loading the file.
+ * Frames are stored in chunks of a fixed number of frames, so the chunk holding any frame is found in constant time,
+ * and a window of frames is read with one positioned read per chunk it touches.
+ * The minimum, maximum and mean of every column of every chunk are kept in memory, so readers can skip chunks without reading them.
+ * <p>
+ * The file starts with a 64-byte header, in the byte order marked within it:
+ * <pre>
+ *  0  magic "WRM2CHNK"
+ *  8  byte   format version
+ *  9  byte   byte order of the header, index and data, 'B' or 'L'
+ * 10  byte   element size, 8 for double or 4 for float
+ * 11  byte   codec of the chunks, 0 for raw or 1 for XOR
+ * 12  int    header size
+ * 16  long   frame count
+ * 24  int    frame length
+ * 28  int    frames per chunk
+ * 32  long   where the index starts
+ * 40  int    chunk count
+ * 44  ...    reserved, 0
+ * 60  int    CRC-32 of bytes 0 to 59
+ * </pre>
+ * Chunks follow, each aligned to 64 bytes. The index holds, for every chunk, a long offset, an int frame count,
+ * an int number of bytes stored, and the minimum, maximum and mean of every column as doubles; it ends with the CRC-32 of the entries.
+ * Raw chunks hold their frames as is; XOR chunks are compressed by <code>XorCodec</code>, and are decoded whole whenever any frame of them is read.
+ * An XOR chunk that would not compress is stored raw instead, and is known by its size.
+ * A reader may be shared between threads.
+ * @author Kyle Moy
+ * @see com.kylelmoy.wrm2eig.ChunkedDataFileWriter
+ */
+public class ChunkedDataFile implements Closeable {
+	/**
+	 * The size of the header
+	 */
+	static final int HEADER_SIZE = 64;
+
+	/**
+	 * The alignment of every chunk in the file
+	 */
+	static final int ALIGNMENT = 64;
+
+	/**
+	 * The version of the chunked format
+	 */
+	static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Marks a chunked file
+	 */
+	private static final byte[] MAGIC = { 'W', 'R', 'M', '2', 'C', 'H', 'N', 'K' };
+
+	/**
+	 * How the frames of a chunk are stored.
+	 */
+	public static enum Codec {
+		/**
+		 * Frames as is, in the byte order of the file
+		 */
+		RAW,
+		/**
+		 * Frames compressed losslessly, each value XOR encoded against a prediction: either the same column of the previous frame,
+		 * or the previous value within its frame, whichever stores the chunk smaller; the chunk's first bit records which
+		 * @see com.kylelmoy.wrm2eig.XorCodec
+		 */
+		XOR
+	}
+
+	/**
+	 * The header of a chunked file.
+	 */
+	static class Header {
+		/**
+		 * The byte order of the header, index and data
+		 */
+		final ByteOrder order;
+
+		/**
+		 * The precision of the data
+		 */
+		final DataFile.Precision precision;
+
+		/**
+		 * How the frames of each chunk are stored
+		 */
+		final Codec codec;
+
+		/**
+		 * The number of data points in each frame
+		 */
+		final int frameLength;
+
+		/**
+		 * The number of frames in each chunk but the last
+		 */
+		final int framesPerChunk;
+
+		/**
+		 * The number of frames
+		 */
+		final long frameCount;
+
+		/**
+		 * The number of chunks
+		 */
+		final int chunkCount;
+
+		/**
+		 * Where the index starts
+		 */
+		final long indexOffset;
+
+		/**
+		 * Construct a new <code>Header</code>, in native byte order.
+		 * @param precision the precision of the data
+		 * @param codec how the frames of each chunk are stored
+		 * @param frameLength the number of data points in each frame
+		 * @param framesPerChunk the number of frames in each chunk but the last
+		 * @param frameCount the number of frames
+		 * @param chunkCount the number of chunks
+		 * @param indexOffset where the index starts
+		 */
+		Header(DataFile.Precision precision, Codec codec, int frameLength, int framesPerChunk, long frameCount, int chunkCount, long indexOffset) {
+			this(ByteOrder.nativeOrder(), precision, codec, frameLength, framesPerChunk, frameCount, chunkCount, indexOffset);
+		}
+
+		private Header(ByteOrder order, DataFile.Precision precision, Codec codec, int frameLength, int framesPerChunk, long frameCount, int chunkCount, long indexOffset) {
+			this.order = order;
+			this.precision = precision;
+			this.codec = codec;
+			this.frameLength = frameLength;
+			this.framesPerChunk = framesPerChunk;
+			this.frameCount = frameCount;
+			this.chunkCount = chunkCount;
+			this.indexOffset = indexOffset;
+		}
+
+		/**
+		 * Reads the header at the start of a file.
+		 * @param fileChannel the file
+		 * @param file the file, named in error messages
+		 * @return the header
+		 * @throws IOException if the file cannot be read
+		 * @throws Error if the file is not a chunked file, or its header is corrupt
+		 */
+		static Header read(FileChannel fileChannel, File file) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(fileChannel, header, 0);
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new Error("Not a chunked file: " + file);
+			header.order(header.get(9) == 'L' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+			CRC32 crc = new CRC32();
+			crc.update(header.array(), 0, HEADER_SIZE - 4);
+			if ((int)crc.getValue() != header.getInt(HEADER_SIZE - 4))
+				throw new Error("Header checksum mismatch: " + file);
+			if (header.get(8) != FORMAT_VERSION)
+				throw new Error("Unsupported format version " + header.get(8) + ": " + file);
+			DataFile.Precision precision;
+			switch (header.get(10)) {
+			case 8:
+				precision = DataFile.Precision.DOUBLE;
+				break;
+			case 4:
+				precision = DataFile.Precision.FLOAT;
+				break;
+			default:
+				throw new Error("Unsupported element size " + header.get(10) + ": " + file);
+			}
+			if (header.get(11) < 0 || header.get(11) >= Codec.values().length)
+				throw new Error("Unsupported codec " + header.get(11) + ": " + file);
+			if (header.getInt(12) != HEADER_SIZE)
+				throw new Error("Unexpected header size " + header.getInt(12) + ": " + file);
+			return new Header(header.order(), precision, Codec.values()[header.get(11)], header.getInt(24), header.getInt(28), header.getLong(16), header.getInt(40), header.getLong(32));
+		}
+
+		/**
+		 * Encodes this header as it is laid out in the file.
+		 * @return a buffer holding the header, ready to be written
+		 */
+		ByteBuffer encode() {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(order);
+			header.put(MAGIC);
+			header.put((byte)FORMAT_VERSION);
+			header.put((byte)(order == ByteOrder.LITTLE_ENDIAN ? 'L' : 'B'));
+			header.put((byte)precision.size);
+			header.put((byte)codec.ordinal());
+			header.putInt(HEADER_SIZE);
+			header.putLong(frameCount);
+			header.putInt(frameLength);
+			header.putInt(framesPerChunk);
+			header.putLong(indexOffset);
+			header.putInt(chunkCount);
+			CRC32 crc = new CRC32();
+			crc.update(header.array(), 0, HEADER_SIZE - 4);
+			header.putInt(HEADER_SIZE - 4, (int)crc.getValue());
+			header.clear();
+			return header;
+		}
+	}
+
+	/**
+	 * The file being read
+	 */
+	private final RandomAccessFile randomAccessFile;
+
+	/**
+	 * The channel of the file being read
+	 */
+	private final FileChannel fileChannel;
+
+	/**
+	 * The header of the file
+	 */
+	private final Header header;
+
+	/**
+	 * Where each chunk starts in the file
+	 */
+	private final long[] offsets;
+
+	/**
+	 * The number of bytes stored of each chunk
+	 */
+	private final int[] sizes;
+
+	/**
+	 * The minimum, maximum and mean of every column of every chunk
+	 */
+	private final double[] statistics;
+
+	/**
+	 * Opens a chunked file and reads its index. The frames themselves are only read on demand.
+	 * @param file the file to open
+	 * @throws IOException if the file cannot be read
+	 * @throws Error if the file is not a chunked file, or its header or index is corrupt
+	 */
+	public ChunkedDataFile(File file) throws IOException {
+		randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			fileChannel = randomAccessFile.getChannel();
+			header = Header.read(fileChannel, file);
+			int entrySize = indexEntrySize(header.frameLength);
+			ByteBuffer index = ByteBuffer.allocate(header.chunkCount * entrySize + 4).order(header.order);
+			readFully(fileChannel, index, header.indexOffset);
+			index.flip();
+			CRC32 crc = new CRC32();
+			crc.update(index.array(), 0, index.limit() - 4);
+			if ((int)crc.getValue() != index.getInt(index.limit() - 4))
+				throw new Error("Index checksum mismatch: " + file);
+			offsets = new long[header.chunkCount];
+			sizes = new int[header.chunkCount];
+			statistics = new double[header.chunkCount * header.frameLength * 3];
+			for (int c = 0; c < header.chunkCount; c++) {
+				offsets[c] = index.getLong();
+				index.getInt();
+				sizes[c] = index.getInt();
+				for (int i = 0; i < header.frameLength * 3; i++)
+					statistics[c * header.frameLength * 3 + i] = index.getDouble();
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			randomAccessFile.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param frameLength the number of data points in each frame
+	 * @return The size of an index entry
+	 */
+	static int indexEntrySize(int frameLength) {
+		return 8 + 4 + 4 + frameLength * 3 * 8;
+	}
+
+	/**
+	 * Reads a window of frames, touching only the chunks that hold them.
+	 * @param from the first frame
+	 * @param count the number of frames
+	 * @return a heap <code>DataFile</code> with each frame as a case, in the precision of the file
+	 * @throws IOException if the file cannot be read
+	 * @throws IndexOutOfBoundsException if the window is not within the file
+	 */
+	public DataFile read(long from, int count) throws IOException {
+		if (from < 0 || count <= 0 || from + count > header.frameCount)
+			throw new IndexOutOfBoundsException("From: " + from + ", count: " + count);
+		if (header.codec == Codec.XOR)
+			return decode(from, count);
+		int w = header.frameLength;
+		int size = header.precision.size;
+		ByteBuffer bytes = ByteBuffer.allocate((int)((long)count * w * size)).order(header.order);
+		long frame = from;
+		while (frame < from + count) {
+			int chunk = chunkOf(frame);
+			long chunkEnd = Math.min((long)(chunk + 1) * header.framesPerChunk, from + count);
+			long position = offsets[chunk] + (frame - (long)chunk * header.framesPerChunk) * w * size;
+			bytes.limit((int)((chunkEnd - from) * w * size));
+			readFully(fileChannel, bytes, position);
+			frame = chunkEnd;
+		}
+		bytes.flip();
+		if (header.precision == DataFile.Precision.FLOAT) {
+			float[] data = new float[count * w];
+			bytes.asFloatBuffer().get(data);
+			return new FloatDataFile(FloatBuffer.wrap(data), w, count);
+		}
+		double[] data = new double[count * w];
+		bytes.asDoubleBuffer().get(data);
+		return new ArrayDataFile(data, w, count);
+	}
+
+	/**
+	 * Reads a window of frames from compressed chunks, decoding each chunk it touches whole.
+	 * @param from the first frame
+	 * @param count the number of frames
+	 * @return a heap <code>DataFile</code> with each frame as a case, in the precision of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	private DataFile decode(long from, int count) throws IOException {
+		int w = header.frameLength;
+		boolean single = header.precision == DataFile.Precision.FLOAT;
+		XorCodec codec = new XorCodec(w);
+		ByteBuffer bytes = ByteBuffer.allocate(0);
+		double[] chunk = single ? null : new double[header.framesPerChunk * w];
+		float[] floatChunk = single ? new float[header.framesPerChunk * w] : null;
+		double[] data = single ? null : new double[count * w];
+		float[] floatData = single ? new float[count * w] : null;
+		long frame = from;
+		while (frame < from + count) {
+			int c = chunkOf(frame);
+			if (bytes.capacity() < sizes[c])
+				bytes = ByteBuffer.allocate(sizes[c]).order(header.order);
+			bytes.clear();
+			bytes.limit(sizes[c]);
+			readFully(fileChannel, bytes, offsets[c]);
+			bytes.flip();
+			int frames = frameCount(c);
+			if (sizes[c] == frames * w * header.precision.size) {
+				//Stored raw, as it did not compress
+				if (single)
+					bytes.asFloatBuffer().get(floatChunk, 0, frames * w);
+				else
+					bytes.asDoubleBuffer().get(chunk, 0, frames * w);
+			} else if (single) {
+				codec.decode(bytes, floatChunk, frames * w);
+			} else {
+				codec.decode(bytes, chunk, frames * w);
+			}
+			long chunkEnd = Math.min(firstFrame(c) + frames, from + count);
+			int source = (int)(frame - firstFrame(c)) * w;
+			int target = (int)(frame - from) * w;
+			int n = (int)(chunkEnd - frame) * w;
+			if (single)
+				System.arraycopy(floatChunk, source, floatData, target, n);
+			else
+				System.arraycopy(chunk, source, data, target, n);
+			frame = chunkEnd;
+		}
+		if (single)
+			return new FloatDataFile(FloatBuffer.wrap(floatData), w, count);
+		return new ArrayDataFile(data, w, count);
+	}
+
+	/**
+	 * @param frame a frame
+	 * @return The chunk holding the frame
+	 */
+	public int chunkOf(long frame) {
+		if (frame < 0 || frame >= header.frameCount)
+			throw new IndexOutOfBoundsException("Frame: " + frame);
+		return (int)(frame / header.framesPerChunk);
+	}
+
+	/**
+	 * @param chunk a chunk
+	 * @return The first frame of the chunk
+	 */
+	public long firstFrame(int chunk) {
+		return (long)chunk * header.framesPerChunk;
+	}
+
+	/**
+	 * @param chunk a chunk
+	 * @return The number of frames in the chunk
+	 */
+	public int frameCount(int chunk) {
+		return (int)Math.min(header.framesPerChunk, header.frameCount - firstFrame(chunk));
+	}
+
+	/**
+	 * @param chunk a chunk
+	 * @param column a position within each frame
+	 * @return The smallest value of the column within the chunk
+	 */
+	public double min(int chunk, int column) {
+		return statistics[statistic(chunk, column)];
+	}
+
+	/**
+	 * @param chunk a chunk
+	 * @param column a position within each frame
+	 * @return The largest value of the column within the chunk
+	 */
+	public double max(int chunk, int column) {
+		return statistics[statistic(chunk, column) + 1];
+	}
+
+	/**
+	 * @param chunk a chunk
+	 * @param column a position within each frame
+	 * @return The mean of the column within the chunk
+	 */
+	public double mean(int chunk, int column) {
+		return statistics[statistic(chunk, column) + 2];
+	}
+
+	/**
+	 * @param chunk a chunk
+	 * @param column a position within each frame
+	 * @param low the low end of a range
+	 * @param high the high end of a range
+	 * @return true if any value of the column within the chunk might fall in the range, false if the chunk can be skipped
+	 */
+	public boolean overlaps(int chunk, int column, double low, double high) {
+		return max(chunk, column) >= low && min(chunk, column) <= high;
+	}
+
+	/**
+	 * @param chunk a chunk
+	 * @param column a position within each frame
+	 * @return Where the statistics of the column of the chunk start
+	 */
+	private int statistic(int chunk, int column) {
+		if (chunk < 0 || chunk >= header.chunkCount)
+			throw new IndexOutOfBoundsException("Chunk: " + chunk);
+		if (column < 0 || column >= header.frameLength)
+			throw new IndexOutOfBoundsException("Column: " + column);
+		return (chunk * header.frameLength + column) * 3;
+	}
+
+	/**
+	 * @return The number of frames
+	 */
+	public long frameCount() {
+		return header.frameCount;
+	}
+
+	/**
+	 * @return The number of data points in each frame
+	 */
+	public int frameLength() {
+		return header.frameLength;
+	}
+
+	/**
+	 * @return The number of chunks
+	 */
+	public int chunkCount() {
+		return header.chunkCount;
+	}
+
+	/**
+	 * @return The number of frames in each chunk but the last
+	 */
+	public int framesPerChunk() {
+		return header.framesPerChunk;
+	}
+
+	/**
+	 * @return How the frames of each chunk are stored
+	 */
+	public Codec codec() {
+		return header.codec;
+	}
+
+	/**
+	 * @param chunk a chunk
+	 * @return The number of bytes stored of the chunk
+	 */
+	public int storedSize(int chunk) {
+		if (chunk < 0 || chunk >= header.chunkCount)
+			throw new IndexOutOfBoundsException("Chunk: " + chunk);
+		return sizes[chunk];
+	}
+
+	/**
+	 * @return The precision the data is stored in
+	 */
+	public DataFile.Precision precision() {
+		return header.precision;
+	}
+
+	/**
+	 * Writes a <code>DataFile</code> as a chunked file of raw chunks, in its own precision.
+	 * @param data the data to write
+	 * @param file the file to write to
+	 * @param frameLength the number of data points in each frame, usually the case length
+	 * @throws IOException if the file cannot be written to
+	 */
+	public static void write(DataFile data, File file, int frameLength) throws IOException {
+		write(data, file, frameLength, Codec.RAW);
+	}
+
+	/**
+	 * Writes a <code>DataFile</code> as a chunked file, in its own precision.
+	 * @param data the data to write
+	 * @param file the file to write to
+	 * @param frameLength the number of data points in each frame, usually the case length
+	 * @param codec how to store the frames of each chunk
+	 * @throws IOException if the file cannot be written to
+	 */
+	public static void write(DataFile data, File file, int frameLength, Codec codec) throws IOException {
+		ChunkedDataFileWriter writer = new ChunkedDataFileWriter(file, frameLength, ChunkedDataFileWriter.DEFAULT_FRAMES_PER_CHUNK, data.precision(), codec);
+		try {
+			writer.write(data);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Closes the file.
+	 * @throws IOException if the file cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		randomAccessFile.close();
+	}
+
+	/**
+	 * Fills a buffer from a position in a file.
+	 * @param fileChannel the file
+	 * @param buffer the buffer to fill
+	 * @param position where to read from
+	 * @throws IOException if the file cannot be read
+	 * @throws Error if the file ends first
+	 */
+	private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = fileChannel.read(buffer, position);
+			if (read < 0)
+				throw new Error("Truncated file");
+			position += read;
+		}
+	}
+}
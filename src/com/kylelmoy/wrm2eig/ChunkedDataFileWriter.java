@@ -0,0 +1,318 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Streams frames to a chunked file, read back with <code>ChunkedDataFile</code>.
+ * Frames are grouped into chunks of a fixed number of frames, and the minimum, maximum and mean of every column
+ * of every chunk are recorded in an index at the end of the file, written when the writer is closed.
+ * @author Kyle Moy
+ * @see com.kylelmoy.wrm2eig.ChunkedDataFile
+ */
+public class ChunkedDataFileWriter implements Closeable {
+	/**
+	 * The number of frames in each chunk, unless given
+	 */
+	public static final int DEFAULT_FRAMES_PER_CHUNK = 1 << 10;
+
+	/**
+	 * The file being written
+	 */
+	private final RandomAccessFile randomAccessFile;
+
+	/**
+	 * The channel of the file being written
+	 */
+	private final FileChannel fileChannel;
+
+	/**
+	 * The number of data points in each frame
+	 */
+	private final int frameLength;
+
+	/**
+	 * The number of frames in each chunk
+	 */
+	private final int framesPerChunk;
+
+	/**
+	 * The precision data is written in
+	 */
+	private final DataFile.Precision precision;
+
+	/**
+	 * How the frames of each chunk are stored
+	 */
+	private final ChunkedDataFile.Codec codec;
+
+	/**
+	 * Compresses chunks, if they are stored compressed
+	 */
+	private final XorCodec xorCodec;
+
+	/**
+	 * The chunk being filled
+	 */
+	private final double[] chunk;
+
+	/**
+	 * The chunk rounded to single precision, if that is the precision written
+	 */
+	private final float[] floatChunk;
+
+	/**
+	 * The number of data points in <code>chunk</code>
+	 */
+	private int chunkLength;
+
+	/**
+	 * Bytes of a chunk waiting to be written
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Where each written chunk starts in the file
+	 */
+	private long[] offsets = new long[16];
+
+	/**
+	 * The number of bytes stored of each written chunk
+	 */
+	private int[] sizes = new int[offsets.length];
+
+	/**
+	 * The minimum, maximum and mean of every column of every written chunk
+	 */
+	private double[] statistics;
+
+	/**
+	 * The number of chunks written
+	 */
+	private int chunkCount;
+
+	/**
+	 * The number of frames written
+	 */
+	private long frameCount;
+
+	/**
+	 * Construct a new <code>ChunkedDataFileWriter</code> writing double precision, truncating the file.
+	 * @param file the file to write to
+	 * @param frameLength the number of data points in each frame
+	 * @throws IOException if the file cannot be opened
+	 * @throws IllegalArgumentException if the frame length is not positive
+	 */
+	public ChunkedDataFileWriter(File file, int frameLength) throws IOException {
+		this(file, frameLength, DEFAULT_FRAMES_PER_CHUNK, DataFile.Precision.DOUBLE);
+	}
+
+	/**
+	 * Construct a new <code>ChunkedDataFileWriter</code> writing raw chunks, truncating the file.
+	 * @param file the file to write to
+	 * @param frameLength the number of data points in each frame
+	 * @param framesPerChunk the number of frames in each chunk
+	 * @param precision the precision to write data in
+	 * @throws IOException if the file cannot be opened
+	 * @throws IllegalArgumentException if the frame length or chunk size is not positive, or a chunk would exceed 2GB
+	 */
+	public ChunkedDataFileWriter(File file, int frameLength, int framesPerChunk, DataFile.Precision precision) throws IOException {
+		this(file, frameLength, framesPerChunk, precision, ChunkedDataFile.Codec.RAW);
+	}
+
+	/**
+	 * Construct a new <code>ChunkedDataFileWriter</code>, truncating the file.
+	 * @param file the file to write to
+	 * @param frameLength the number of data points in each frame
+	 * @param framesPerChunk the number of frames in each chunk
+	 * @param precision the precision to write data in
+	 * @param codec how to store the frames of each chunk
+	 * @throws IOException if the file cannot be opened
+	 * @throws IllegalArgumentException if the frame length or chunk size is not positive, or a chunk would exceed 2GB
+	 */
+	public ChunkedDataFileWriter(File file, int frameLength, int framesPerChunk, DataFile.Precision precision, ChunkedDataFile.Codec codec) throws IOException {
+		if (frameLength <= 0 || framesPerChunk <= 0 || (long)frameLength * framesPerChunk * 10 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException();
+		this.frameLength = frameLength;
+		this.framesPerChunk = framesPerChunk;
+		this.precision = precision;
+		this.codec = codec;
+		chunk = new double[frameLength * framesPerChunk];
+		floatChunk = precision == DataFile.Precision.FLOAT ? new float[chunk.length] : null;
+		statistics = new double[offsets.length * frameLength * 3];
+		if (codec == ChunkedDataFile.Codec.XOR) {
+			xorCodec = new XorCodec(frameLength);
+			buffer = ByteBuffer.allocateDirect(XorCodec.maxEncodedSize(chunk.length, precision)).order(ByteOrder.nativeOrder());
+		} else {
+			xorCodec = null;
+			buffer = ByteBuffer.allocateDirect(chunk.length * precision.size).order(ByteOrder.nativeOrder());
+		}
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(0);
+		fileChannel = randomAccessFile.getChannel();
+		fileChannel.position(ChunkedDataFile.HEADER_SIZE);
+	}
+
+	/**
+	 * Appends a range of data points, which need not be whole frames.
+	 * @param data the data to be written
+	 * @param offset the first index of <code>data</code> to write
+	 * @param count the number of data points to write
+	 * @throws IOException if the file cannot be written to
+	 */
+	public void write(double[] data, int offset, int count) throws IOException {
+		while (count > 0) {
+			int n = Math.min(count, chunk.length - chunkLength);
+			System.arraycopy(data, offset, chunk, chunkLength, n);
+			chunkLength += n;
+			offset += n;
+			count -= n;
+			if (chunkLength == chunk.length)
+				flush();
+		}
+	}
+
+	/**
+	 * Appends all the data of a <code>DataFile</code>.
+	 * @param data the data to be written
+	 * @throws IOException if the file cannot be written to
+	 */
+	public void write(DataFile data) throws IOException {
+		long index = 0;
+		long count = data.longLength();
+		while (count > 0) {
+			int n = (int)Math.min(count, chunk.length - chunkLength);
+			data.get(index, chunk, chunkLength, n);
+			chunkLength += n;
+			index += n;
+			count -= n;
+			if (chunkLength == chunk.length)
+				flush();
+		}
+	}
+
+	/**
+	 * @return The number of whole frames written so far
+	 */
+	public long frameCount() {
+		return frameCount + chunkLength / frameLength;
+	}
+
+	/**
+	 * Writes the last chunk, the index and the header, and closes the file.
+	 * @throws IOException if the file cannot be written to
+	 * @throws Error if the data written does not divide into whole frames
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (chunkLength % frameLength != 0)
+				throw new Error("Declared length, frame length mismatch: " + (frameCount * frameLength + chunkLength));
+			if (chunkLength > 0)
+				flush();
+			long indexOffset = align(fileChannel.position());
+			ByteBuffer index = ByteBuffer.allocate(chunkCount * ChunkedDataFile.indexEntrySize(frameLength) + 4).order(ByteOrder.nativeOrder());
+			for (int c = 0; c < chunkCount; c++) {
+				index.putLong(offsets[c]);
+				index.putInt((int)Math.min(framesPerChunk, frameCount - (long)c * framesPerChunk));
+				index.putInt(sizes[c]);
+				for (int i = 0; i < frameLength * 3; i++)
+					index.putDouble(statistics[c * frameLength * 3 + i]);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(index.array(), 0, index.position());
+			index.putInt((int)crc.getValue());
+			index.flip();
+			write(index, indexOffset);
+			ByteBuffer header = new ChunkedDataFile.Header(precision, codec, frameLength, framesPerChunk, frameCount, chunkCount, indexOffset).encode();
+			write(header, 0);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Records the statistics of the staged chunk, and writes it to the file at the next aligned position.
+	 * @throws IOException if the file cannot be written to
+	 */
+	private void flush() throws IOException {
+		if (chunkCount == offsets.length) {
+			offsets = Arrays.copyOf(offsets, chunkCount * 2);
+			sizes = Arrays.copyOf(sizes, chunkCount * 2);
+			statistics = Arrays.copyOf(statistics, chunkCount * 2 * frameLength * 3);
+		}
+		int frames = chunkLength / frameLength;
+		buffer.clear();
+		if (precision == DataFile.Precision.FLOAT) {
+			//Round first, so the statistics describe the data as stored
+			for (int i = 0; i < chunkLength; i++) {
+				floatChunk[i] = (float)chunk[i];
+				chunk[i] = floatChunk[i];
+			}
+			if (xorCodec != null)
+				xorCodec.encode(floatChunk, chunkLength, buffer);
+		} else if (xorCodec != null) {
+			xorCodec.encode(chunk, chunkLength, buffer);
+		}
+		//Data that does not compress is stored raw, and known by its size
+		if (xorCodec == null || buffer.limit() >= chunkLength * precision.size) {
+			buffer.clear();
+			if (precision == DataFile.Precision.FLOAT)
+				buffer.asFloatBuffer().put(floatChunk, 0, chunkLength);
+			else
+				buffer.asDoubleBuffer().put(chunk, 0, chunkLength);
+			buffer.limit(chunkLength * precision.size);
+		}
+		int s = chunkCount * frameLength * 3;
+		for (int x = 0; x < frameLength; x++) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			double sum = 0;
+			for (int i = x; i < chunkLength; i += frameLength) {
+				double d = chunk[i];
+				if (d < min)
+					min = d;
+				if (d > max)
+					max = d;
+				sum += d;
+			}
+			statistics[s + x * 3] = min;
+			statistics[s + x * 3 + 1] = max;
+			statistics[s + x * 3 + 2] = sum / frames;
+		}
+		long offset = align(fileChannel.position());
+		int size = buffer.limit();
+		offsets[chunkCount] = offset;
+		sizes[chunkCount++] = size;
+		write(buffer, offset);
+		fileChannel.position(offset + size);
+		frameCount += frames;
+		chunkLength = 0;
+	}
+
+	/**
+	 * @param position a position in the file
+	 * @return The position rounded up to the chunk alignment
+	 */
+	private static long align(long position) {
+		return (position + ChunkedDataFile.ALIGNMENT - 1) & -ChunkedDataFile.ALIGNMENT;
+	}
+
+	/**
+	 * Writes a buffer at a position in the file.
+	 * @param buffer the bytes to write
+	 * @param position where to write them
+	 * @throws IOException if the file cannot be written to
+	 */
+	private void write(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += fileChannel.write(buffer, position);
+	}
+}
@@ -0,0 +1,241 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+
+/**
+ * A <code>DataFile</code> stored a column at a time, so every column is contiguous in memory.
+ * It is indexed a case at a time like any other <code>DataFile</code>, but reading a column is a single bulk copy,
+ * while reading a case gathers from every column.
+ * The data is held as its transpose, another <code>DataFile</code> with one case per column, of any precision or backing.
+ * @author Kyle Moy
+ * @see com.kylelmoy.wrm2eig.DataFile#toLayout(DataFile.Layout)
+ */
+class ColumnMajorDataFile extends DataFile {
+	/**
+	 * The number of data points transposed at a time, a tile small enough to stay in cache
+	 */
+	private static final int TILE_SIZE = 1 << 13;
+
+	/**
+	 * The transposed data, with every column as a case
+	 */
+	private final DataFile columns;
+
+	/**
+	 * The number of cases in every column of <code>columns</code>
+	 */
+	private final int height;
+
+	/**
+	 * Where this view starts in every column
+	 */
+	private final int firstCase;
+
+	/**
+	 * Construct a new <code>ColumnMajorDataFile</code> around a range of transposed data.
+	 * @param columns the transposed data, with every column as a case
+	 * @param firstCase the first case in the range
+	 * @param caseCount the number of cases in the range
+	 */
+	ColumnMajorDataFile(DataFile columns, int firstCase, int caseCount) {
+		super((long)columns.caseCount() * caseCount, columns.caseCount(), caseCount);
+		this.columns = columns;
+		this.height = columns.caseLength();
+		this.firstCase = firstCase;
+	}
+
+	/**
+	 * Transposes row major data into a new column major <code>DataFile</code>, keeping its precision.
+	 * Cases are read a tile at a time, transposed in cache, and written out as runs of every column.
+	 * @param source the data to transpose
+	 * @return a column major copy of the data
+	 */
+	static ColumnMajorDataFile transpose(DataFile source) {
+		int w = source.caseLength();
+		int h = source.caseCount();
+		int block = Math.max(1, TILE_SIZE / w);
+		double[] rows = new double[block * w];
+		double[] tile = new double[block * w];
+		DataFileBuilder output = new DataFileBuilder((long)w * h, w);
+		for (int y0 = 0; y0 < h; y0 += block) {
+			int b = Math.min(block, h - y0);
+			source.get((long)y0 * w, rows, 0, b * w);
+			for (int y = 0; y < b; y++)
+				for (int x = 0; x < w; x++)
+					tile[x * b + y] = rows[y * w + x];
+			for (int x = 0; x < w; x++)
+				output.add((long)x * h + y0, tile, x * b, b);
+		}
+		DataFile columns = output.build();
+		if (source.precision() == Precision.FLOAT)
+			columns = columns.toFloat();
+		return new ColumnMajorDataFile(columns, 0, h);
+	}
+
+	/**
+	 * @return The transposed data, with every column as a case
+	 */
+	DataFile columns() {
+		return columns;
+	}
+
+	/**
+	 * Reads a range of cases, transposing them back into row major order.
+	 * @param from the first case
+	 * @param count the number of cases
+	 * @param tile scratch space at least <code>count * caseLength()</code> long
+	 * @param rows the array to copy the cases into
+	 */
+	private void rows(int from, int count, double[] tile, double[] rows) {
+		int w = caseLength();
+		getTile(from, count, tile, null);
+		for (int x = 0; x < w; x++)
+			for (int y = 0; y < count; y++)
+				rows[y * w + x] = tile[x * count + y];
+	}
+
+	@Override
+	public Layout layout() {
+		return Layout.COLUMN_MAJOR;
+	}
+
+	@Override
+	public DataFile toLayout(Layout layout) {
+		if (layout == Layout.COLUMN_MAJOR)
+			return this;
+		int w = caseLength();
+		int h = caseCount();
+		int block = Math.max(1, TILE_SIZE / w);
+		double[] rows = new double[block * w];
+		double[] tile = new double[block * w];
+		DataFileBuilder output = new DataFileBuilder(longLength(), h);
+		for (int y0 = 0; y0 < h; y0 += block) {
+			int b = Math.min(block, h - y0);
+			rows(y0, b, tile, rows);
+			output.add(rows, 0, b * w);
+		}
+		DataFile data = output.build();
+		if (precision() == Precision.FLOAT)
+			data = data.toFloat();
+		return data;
+	}
+
+	@Override
+	public Precision precision() {
+		return columns.precision();
+	}
+
+	@Override
+	public DataFile toFloat() {
+		if (precision() == Precision.FLOAT)
+			return this;
+		return new ColumnMajorDataFile(columns.toFloat(), firstCase, caseCount());
+	}
+
+	@Override
+	public double get(int index) {
+		return get((long)index);
+	}
+
+	@Override
+	public double get(long index) {
+		if (index < 0 || index >= longLength())
+			throw new IndexOutOfBoundsException("Index: " + index);
+		int y = (int)(index / caseLength());
+		int x = (int)(index - (long)y * caseLength());
+		return columns.get((long)x * height + firstCase + y);
+	}
+
+	@Override
+	public void get(long index, double[] buffer, int offset, int count) {
+		if (index < 0 || count < 0 || index + count > longLength())
+			throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+		int y = (int)(index / caseLength());
+		int x = (int)(index - (long)y * caseLength());
+		for (int i = 0; i < count; i++) {
+			buffer[offset + i] = columns.get((long)x * height + firstCase + y);
+			if (++x == caseLength()) {
+				x = 0;
+				y++;
+			}
+		}
+	}
+
+	@Override
+	void get(long index, DoubleBuffer buffer, int count) {
+		if (index < 0 || count < 0 || index + count > longLength())
+			throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+		int y = (int)(index / caseLength());
+		int x = (int)(index - (long)y * caseLength());
+		for (int i = 0; i < count; i++) {
+			buffer.put(columns.get((long)x * height + firstCase + y));
+			if (++x == caseLength()) {
+				x = 0;
+				y++;
+			}
+		}
+	}
+
+	@Override
+	public double[] getColumn(int column, double[] buffer) {
+		if (column < 0 || column >= caseLength())
+			throw new IndexOutOfBoundsException("Column: " + column);
+		columns.get((long)column * height + firstCase, buffer, 0, caseCount());
+		return buffer;
+	}
+
+	@Override
+	double[] getTile(int from, int count, double[] tile, double[] rows) {
+		if (from < 0 || count < 0 || from + count > caseCount())
+			throw new IndexOutOfBoundsException("From: " + from + ", count: " + count);
+		for (int x = 0; x < caseLength(); x++)
+			columns.get((long)x * height + firstCase + from, tile, x * count, count);
+		return tile;
+	}
+
+	@Override
+	DataFile view(long index, long length, int caseCount) {
+		return new ColumnMajorDataFile(columns, firstCase + (int)(index / caseLength()), caseCount);
+	}
+
+	@Override
+	public double[][] array() {
+		int w = caseLength();
+		int h = caseCount();
+		int block = Math.max(1, TILE_SIZE / w);
+		double[] rows = new double[block * w];
+		double[] tile = new double[block * w];
+		double[][] output = new double[h][w];
+		for (int y0 = 0; y0 < h; y0 += block) {
+			int b = Math.min(block, h - y0);
+			rows(y0, b, tile, rows);
+			for (int y = 0; y < b; y++)
+				System.arraycopy(rows, y * w, output[y0 + y], 0, w);
+		}
+		return output;
+	}
+
+	/**
+	 * Dumps the state of this DataFile to a file, column major. Views of part of the data, and files
+	 * in the legacy format, are written row major instead.
+	 * @param file the <code>File</code> to write to
+	 * @param mapped ignored, column major files are always written through the channel
+	 * @param version <code>FORMAT_VERSION</code>, or <code>LEGACY_FORMAT</code> for older readers
+	 * @throws IOException if the <code>File</code> cannot be written to
+	 */
+	@Override
+	public void writeToFile(File file, boolean mapped, int version) throws IOException {
+		if (version == LEGACY_FORMAT || firstCase != 0 || caseCount() != height) {
+			super.writeToFile(file, mapped, version);
+			return;
+		}
+		DataFileWriter writer = new DataFileWriter(file, caseLength(), precision(), version, Layout.COLUMN_MAJOR);
+		try {
+			writer.write(columns);
+		} finally {
+			writer.close();
+		}
+	}
+}
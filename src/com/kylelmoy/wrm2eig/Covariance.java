@@ -0,0 +1,211 @@
+package com.kylelmoy.wrm2eig;
+
+import Jama.Matrix;
+
+/**
+ * Accumulates the covariance matrix of the columns of a <code>DataFile</code>, as a count, a mean for every column,
+ * and the Gram matrix of the centred columns, their sums of co-deviations.
+ * Each range of cases added is read in two passes. The first sums every column at once for their means. The second reads tiles of cases,
+ * centres them, and accumulates the Gram matrix of the centred tile, the dot product of every pair of columns, before moving on,
+ * so each tile is read from memory once and every dot product runs over a contiguous run of two columns in cache.
+ * Only the upper triangle is accumulated, and mirrored into the lower by <code>matrix()</code>.
+ * Either layout is read a tile at a time, column major data without transposing.
+ * <p>
+ * Partial covariances over separate ranges of cases, calculated on separate threads, are combined with <code>merge</code>,
+ * by the pairwise update of Chan, Golub and LeVeque, which corrects the co-deviations for the difference between the two means
+ * rather than summing raw products, so it stays accurate when the means are large against the spread.
+ * Floating point addition is not associative, so the result depends on how the cases were split and the order partials are merged in,
+ * but is the same for the same split and order.
+ * @author Kyle Moy
+ */
+class Covariance {
+	/**
+	 * The number of data points in each tile, small enough that a centred tile stays in cache while every pair of its columns is multiplied
+	 */
+	private static final int TILE_SIZE = 1 << 13;
+
+	/**
+	 * The number of columns
+	 */
+	private final int n;
+
+	/**
+	 * The mean of every column
+	 */
+	private final double[] means;
+
+	/**
+	 * The sums of co-deviations from the means, row major, upper triangle only
+	 */
+	private final double[] gram;
+
+	/**
+	 * The number of cases accumulated
+	 */
+	private long count;
+
+	/**
+	 * Construct a new, empty <code>Covariance</code>.
+	 * @param n the number of columns
+	 */
+	Covariance(int n) {
+		this.n = n;
+		means = new double[n];
+		gram = new double[n * n];
+	}
+
+	/**
+	 * Calculates the sample covariance matrix of the columns of a <code>DataFile</code>.
+	 * @param data the data, one observation per case
+	 * @return the covariance <code>Matrix</code>, <code>caseLength()</code> square
+	 */
+	static Matrix of(DataFile data) {
+		Covariance covariance = new Covariance(data.caseLength());
+		covariance.add(data, 0, data.caseCount());
+		return covariance.matrix();
+	}
+
+	/**
+	 * Accumulates a range of cases.
+	 * @param data the data, one observation per case, <code>n</code> long
+	 * @param from the first case
+	 * @param caseCount the number of cases
+	 * @throws IllegalArgumentException if the case length of the data is not <code>n</code>
+	 */
+	void add(DataFile data, int from, int caseCount) {
+		if (data.caseLength() != n)
+			throw new IllegalArgumentException("Expected " + n + " columns, got " + data.caseLength());
+		if (caseCount <= 0)
+			return;
+		if (count > 0) {
+			Covariance range = new Covariance(n);
+			range.add(data, from, caseCount);
+			merge(range);
+			return;
+		}
+		int block = Math.max(1, Math.min(caseCount, TILE_SIZE / Math.max(1, n)));
+		double[] tile = new double[block * n];
+		double[] rows = new double[block * n];
+		int end = from + caseCount;
+
+		//Means, every column in one pass
+		for (int y0 = from; y0 < end; y0 += block) {
+			int b = Math.min(block, end - y0);
+			data.getTile(y0, b, tile, rows);
+			for (int x = 0; x < n; x++) {
+				double sum = 0;
+				for (int i = x * b, last = i + b; i < last; i++)
+					sum += tile[i];
+				means[x] += sum;
+			}
+		}
+		for (int x = 0; x < n; x++)
+			means[x] /= caseCount;
+
+		//Centred Gram matrix, upper triangle, a tile at a time
+		for (int y0 = from; y0 < end; y0 += block) {
+			int b = Math.min(block, end - y0);
+			data.getTile(y0, b, tile, rows);
+			for (int x = 0; x < n; x++) {
+				double mean = means[x];
+				for (int i = x * b, last = i + b; i < last; i++)
+					tile[i] -= mean;
+			}
+			gram(tile, b, n, gram);
+		}
+		count = caseCount;
+	}
+
+	/**
+	 * Combines another partial covariance into this one, as if its cases had been added here.
+	 * @param that the partial covariance, which is left unchanged
+	 * @throws IllegalArgumentException if the number of columns differs
+	 */
+	void merge(Covariance that) {
+		if (that.n != n)
+			throw new IllegalArgumentException("Expected " + n + " columns, got " + that.n);
+		if (that.count == 0)
+			return;
+		if (count == 0) {
+			System.arraycopy(that.means, 0, means, 0, n);
+			System.arraycopy(that.gram, 0, gram, 0, gram.length);
+			count = that.count;
+			return;
+		}
+		double total = (double)count + that.count;
+		double weight = (double)count * that.count / total;
+		double[] delta = new double[n];
+		for (int x = 0; x < n; x++)
+			delta[x] = that.means[x] - means[x];
+		for (int x = 0; x < n; x++) {
+			double scaled = delta[x] * weight;
+			for (int y = x; y < n; y++)
+				gram[x * n + y] += that.gram[x * n + y] + scaled * delta[y];
+		}
+		for (int x = 0; x < n; x++)
+			means[x] += delta[x] * (that.count / total);
+		count += that.count;
+	}
+
+	/**
+	 * @return The number of cases accumulated
+	 */
+	long count() {
+		return count;
+	}
+
+	/**
+	 * @return The sample covariance <code>Matrix</code> of the cases accumulated, <code>n</code> square
+	 */
+	Matrix matrix() {
+		double[][] covar = new double[n][n];
+		for (int x = 0; x < n; x++) {
+			for (int y = x; y < n; y++) {
+				double value = gram[x * n + y] / (double)(count - 1);
+				covar[x][y] = value;
+				covar[y][x] = value;
+			}
+		}
+		return new Matrix(covar);
+	}
+
+	/**
+	 * Adds the dot product of every pair of columns of a tile to the upper triangle of a Gram matrix.
+	 * Four columns are multiplied against one at a time, so each value of that column is loaded once for all four.
+	 * @param tile the tile, column major
+	 * @param b the number of cases in the tile
+	 * @param n the number of columns
+	 * @param gram the Gram matrix, row major, <code>n</code> square
+	 */
+	private static void gram(double[] tile, int b, int n, double[] gram) {
+		for (int x = 0; x < n; x++) {
+			int xi = x * b;
+			int y = x;
+			for (; y + 3 < n; y += 4) {
+				int y0 = y * b;
+				int y1 = y0 + b;
+				int y2 = y1 + b;
+				int y3 = y2 + b;
+				double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+				for (int i = 0; i < b; i++) {
+					double v = tile[xi + i];
+					s0 += v * tile[y0 + i];
+					s1 += v * tile[y1 + i];
+					s2 += v * tile[y2 + i];
+					s3 += v * tile[y3 + i];
+				}
+				gram[x * n + y] += s0;
+				gram[x * n + y + 1] += s1;
+				gram[x * n + y + 2] += s2;
+				gram[x * n + y + 3] += s3;
+			}
+			for (; y < n; y++) {
+				int yi = y * b;
+				double s = 0;
+				for (int i = 0; i < b; i++)
+					s += tile[xi + i] * tile[yi + i];
+				gram[x * n + y] += s;
+			}
+		}
+	}
+}
@@ -1,198 +1,434 @@
 package com.kylelmoy.wrm2eig;
 
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.DoubleBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.util.zip.CRC32;
 
 import Jama.Matrix;
 
 /**
- * An array-backed data transfer object for conveying worm data.
+ * A data transfer object for conveying worm data.
+ * A <code>DataFile</code> is immutable once constructed, so it may be read from any number of threads without locking.
+ * Data is either held in an array on the heap, or read straight from a memory mapped file. Datasets longer than
+ * an array can hold are stored in segments, and read with the <code>long</code> accessors.
+ * Data may also be stored in single precision, see <code>toFloat()</code>; it is always read back as <code>double</code>.
+ * Data may also be stored a column at a time, see <code>toLayout(Layout)</code>; it is always indexed a case at a time.
+ * Use a <code>DataFileBuilder</code> to fill in new data.
  * @author Kyle Moy
- *
+ * @see com.kylelmoy.wrm2eig.DataFileBuilder
  */
-public class DataFile {
+public abstract class DataFile {
 	/**
-	 * Where the data is stored.
+	 * The precision data is stored in, in memory and on disk
 	 */
-	private transient double[] data;
-	
+	public enum Precision {
+		/** 64-bit <code>double</code> */
+		DOUBLE(8),
+		/** 32-bit <code>float</code>, widened to <code>double</code> when read */
+		FLOAT(4);
+
+		/**
+		 * The size of a data point in bytes
+		 */
+		final int size;
+
+		private Precision(int size) {
+			this.size = size;
+		}
+	}
+
 	/**
-	 * The total number data points
+	 * The order data is stored in. Data is always indexed case by case, whatever order it is stored in.
 	 */
-	private final int length;
-	
+	public enum Layout {
+		/** Each case stored contiguously, one after another */
+		ROW_MAJOR,
+		/** Each column, the data at one position in every case, stored contiguously, one after another */
+		COLUMN_MAJOR
+	}
+
 	/**
-	 * The number of data points in each case
+	 * The version of the file format written by default
+	 * @see com.kylelmoy.wrm2eig.DataFileHeader
 	 */
-	private final int caseLength;
-	
+	public static final int FORMAT_VERSION = 1;
+
+	/**
+	 * The legacy file format: a header of three big-endian doubles, followed by big-endian data
+	 */
+	public static final int LEGACY_FORMAT = 0;
+
+	/**
+	 * The largest array the VM will reliably allocate
+	 */
+	static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
 	/**
-	 * Keeps track of the seek position for writing
+	 * The total number data points
 	 */
-	private int writePointer;
-	
+	private final long length;
+
 	/**
-	 * Keeps track of the seek position for reading
+	 * The number of data points in each case
 	 */
-	private int readPointer;
-	
+	private final int caseLength;
+
 	/**
 	 * The number of cases
 	 */
 	private final int caseCount;
-	
+
 	/**
-	 * Construct a new <code>DataFile</code>, and initialize it with data from a <code>File</code>.
-	 * @param file the file whose data will populate the DataFile
-	 * @param caseLength the length of each individual case 
+	 * Construct a new <code>DataFile</code> with the given shape.
+	 * @param length the total number of data points
+	 * @param caseLength the length of each individual case
 	 * @param caseCount the number of cases
+	 */
+	DataFile(long length, int caseLength, int caseCount) {
+		this.length = length;
+		this.caseLength = caseLength;
+		this.caseCount = caseCount;
+	}
+
+	/**
+	 * Loads a <code>DataFile</code> from a <code>File</code> into memory.
+	 * The data is read through the file channel rather than mapped, so the file is not held open once it is loaded,
+	 * and may be replaced or deleted straight away, even on Windows.
+	 * @param file the file whose data will populate the DataFile
+	 * @return a heap <code>DataFile</code> holding a copy of the file data
+	 * @throws IOException if the file cannot be read
+	 * @see #map(File)
+	 */
+	public static DataFile load(File file) throws IOException {
+		return open(file, false);
+	}
+
+	/**
+	 * Maps a <code>File</code> as a <code>DataFile</code> without copying it.
+	 * Data is paged in by the operating system as it is read, and pages are shared with every other reader of the file.
+	 * Files too large for a single mapping are mapped in several segments.
+	 * Files in both the current and the legacy format are read, in whichever byte order they were written.
+	 * The data checksum is not verified here, see <code>verify(File)</code>.
+	 * @param file the file whose data will back the DataFile
+	 * @return a <code>DataFile</code> backed by the mapped file
 	 * @throws IOException if the file cannot be read
 	 */
-	public DataFile(File file) throws IOException {
+	public static DataFile map(File file) throws IOException {
+		return open(file, true);
+	}
+
+	/**
+	 * Opens a <code>File</code> as a <code>DataFile</code>, in either format and byte order.
+	 * @param file the file to open
+	 * @param mapped true to map the data, false to read it onto the heap
+	 * @return a <code>DataFile</code> backed by the mapped file, or by heap arrays
+	 * @throws IOException if the file cannot be read
+	 */
+	private static DataFile open(File file, boolean mapped) throws IOException {
 		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-		FileChannel fileChannel = randomAccessFile.getChannel();
-		MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
-		DoubleBuffer doublebuffer = mappedByteBuffer.asDoubleBuffer();
-		length = (int)doublebuffer.get();
-		caseLength = (int)doublebuffer.get();
-		caseCount = (int)doublebuffer.get();
-		data = new double[doublebuffer.remaining()];
-		doublebuffer.get(data);
-		randomAccessFile.close();
-		if (length != data.length)
-			throw new Error("Declared length, data length mismatch: " + length + " != " + data.length);
-		//if (length % caseLength != 0) 
-		//	throw new Error("Declared length, case length mismatch: " + length);
-		
-		writePointer = length;
-		readPointer = 0;
-	}
-	
-	
-	/**
-	 * Construct a new, empty <code>DataFile</code>.
-	 * @param file the file whose data will populate the DataFile
+		try {
+			FileChannel fileChannel = randomAccessFile.getChannel();
+			DataFileHeader header = DataFileHeader.read(fileChannel, file);
+			long length = header.length;
+			int caseLength = header.caseLength;
+			int caseCount = header.caseCount;
+			if (header.layout == Layout.COLUMN_MAJOR) {
+				//Stored as the transpose, with every column as a case
+				caseLength = header.caseCount;
+				caseCount = header.caseLength;
+			}
+			int position = header.size();
+			Precision precision = header.precision;
+			long remaining = (fileChannel.size() - position) / precision.size;
+			if (length != remaining)
+				throw new Error("Declared length, data length mismatch: " + length + " != " + remaining);
+			//if (length % caseLength != 0)
+			//	throw new Error("Declared length, case length mismatch: " + length);
+			DataFile data;
+			if (!mapped) {
+				data = read(fileChannel, position, header.order, precision, length, caseLength, caseCount);
+			} else if (precision == Precision.FLOAT) {
+				data = FloatDataFile.map(fileChannel, position, header.order, length, caseLength, caseCount);
+			} else if (length * 8 > Integer.MAX_VALUE) {
+				data = SegmentedDataFile.map(fileChannel, position, header.order, length, caseLength, caseCount);
+			} else {
+				MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, length * 8);
+				data = new MappedDataFile(mappedByteBuffer.order(header.order).asDoubleBuffer(), caseLength, caseCount);
+			}
+			if (header.layout == Layout.COLUMN_MAJOR)
+				return new ColumnMajorDataFile(data, 0, header.caseCount);
+			return data;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Reads the data of a file into heap arrays, a buffer at a time, in segments when it is longer than a single array can hold.
+	 * @param fileChannel the file
+	 * @param position where the data starts in the file
+	 * @param order the byte order of the data
+	 * @param precision the precision of the data
+	 * @param length the number of data points
+	 * @param caseLength the length of each individual case
 	 * @param caseCount the number of cases
-	 * @throws IllegalArgumentException if the length or case count is negative
+	 * @return a heap <code>DataFile</code> holding the data
+	 * @throws IOException if the file cannot be read
 	 */
-	public DataFile(int length, int caseCount) {
-		if (length < 0 || caseCount <= 0)
-			throw new IllegalArgumentException();
-		
-		this.length = length;
-		caseLength = length / caseCount;
-		this.caseCount = caseCount;
-		data = new double[length];
-		writePointer = 0;
-		readPointer = 0;
+	private static DataFile read(FileChannel fileChannel, long position, ByteOrder order, Precision precision, long length, int caseLength, int caseCount) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(order);
+		if (precision == Precision.FLOAT) {
+			float[][] segments = FloatDataFile.allocate(length);
+			for (float[] segment : segments) {
+				for (int i = 0; i < segment.length; ) {
+					int n = Math.min(segment.length - i, buffer.capacity() / 4);
+					readFully(fileChannel, buffer, position, n * 4);
+					buffer.asFloatBuffer().get(segment, i, n);
+					position += n * 4L;
+					i += n;
+				}
+			}
+			return FloatDataFile.wrap(segments, caseLength, caseCount);
+		}
+		double[][] segments;
+		if (length <= MAX_ARRAY_LENGTH)
+			segments = new double[][] { new double[(int)length] };
+		else
+			segments = SegmentedDataFile.allocate(length);
+		for (double[] segment : segments) {
+			for (int i = 0; i < segment.length; ) {
+				int n = Math.min(segment.length - i, buffer.capacity() / 8);
+				readFully(fileChannel, buffer, position, n * 8);
+				buffer.asDoubleBuffer().get(segment, i, n);
+				position += n * 8L;
+				i += n;
+			}
+		}
+		if (segments.length == 1)
+			return new ArrayDataFile(segments[0], caseLength, caseCount);
+		return SegmentedDataFile.wrap(segments, caseLength, caseCount);
 	}
-	
+
 	/**
-	 * Construct a new <code>DataFile</code>, and initialize it with data from a <code>double[]</code>.
+	 * Reads bytes from a file into the start of a buffer, and flips it for reading.
+	 * @param fileChannel the file
+	 * @param buffer the buffer to read into
+	 * @param position where to read from
+	 * @param count the number of bytes to read
+	 * @throws IOException if the file cannot be read
+	 * @throws Error if the file ends first
+	 */
+	private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position, int count) throws IOException {
+		buffer.clear();
+		buffer.limit(count);
+		while (buffer.hasRemaining()) {
+			int read = fileChannel.read(buffer, position);
+			if (read < 0)
+				throw new Error("Truncated file");
+			position += read;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Verifies the data of a <code>File</code> against the checksum in its header.
+	 * Legacy files carry no checksum, so only their length is checked.
+	 * @param file the file to verify
+	 * @return true if the data matches its checksum, false otherwise
+	 * @throws IOException if the file cannot be read
+	 * @throws Error if the header is corrupt
+	 */
+	public static boolean verify(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel fileChannel = randomAccessFile.getChannel();
+			DataFileHeader header = DataFileHeader.read(fileChannel, file);
+			long size = header.size() + header.length * header.precision.size;
+			if (fileChannel.size() != size)
+				return false;
+			if (header.version == LEGACY_FORMAT)
+				return true;
+			CRC32 crc = new CRC32();
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+			fileChannel.position(header.size());
+			while (fileChannel.read(buffer) >= 0) {
+				buffer.flip();
+				DataFileHeader.update(crc, buffer);
+				buffer.clear();
+			}
+			return crc.getValue() == header.checksum;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Construct a new <code>DataFile</code> around a <code>double[]</code>.
+	 * The array is used as is, not copied, and must not be modified afterwards.
 	 * @param data the data
-	 * @param caseLength the length of each individual case 
+	 * @param caseLength the length of each individual case
+	 * @return a heap <code>DataFile</code> backed by the array
 	 * @throws IllegalArgumentException if the length or case length is negative, or the case length is not divisible by the case length
 	 */
-	public DataFile(double[] data, int caseLength) {
+	public static DataFile wrap(double[] data, int caseLength) {
 		if (data.length <= 0 || caseLength <= 0)
 			throw new IllegalArgumentException();
-		this.data = data;
-		length = data.length;
-		this.caseLength = caseLength;
-		this.caseCount = length / caseLength;
-		writePointer = 0;
-		readPointer = 0;
+		return new ArrayDataFile(data, caseLength, data.length / caseLength);
 	}
-	
+
 	/**
-	 * Writes the supplied data at the writing position, and increments the writing position.
-	 * @param d the data to be written
+	 * @return The precision the data is stored in
 	 */
-	public void add(double d) {
-		synchronized (data) {
-			data[writePointer++] = d;
-		}
+	public Precision precision() {
+		return Precision.DOUBLE;
 	}
 
 	/**
-	 * Writes the supplied data at the supplied position.
-	 * @param index the position to write to
-	 * @param d the data to be written
+	 * @return The order the data is stored in
 	 */
-	public void add(int index, double d) {
-		synchronized (data) {
-			data[index] = d;
-		}
+	public Layout layout() {
+		return Layout.ROW_MAJOR;
+	}
+
+	/**
+	 * Copies this <code>DataFile</code> into the given layout, with a cache blocked transpose.
+	 * Stages that read a column at a time, like covariance, run on column major data without striding through memory.
+	 * @param layout the layout to store the data in
+	 * @return a copy of the data in the layout, or this <code>DataFile</code> if it is already in the layout
+	 */
+	public DataFile toLayout(Layout layout) {
+		if (layout == layout())
+			return this;
+		return ColumnMajorDataFile.transpose(this);
+	}
+
+	/**
+	 * Copies this <code>DataFile</code> into single precision, rounding every data point to the nearest <code>float</code>.
+	 * The copy takes half the memory, and is written to disk in half the space.
+	 * @return a single precision copy, or this <code>DataFile</code> if it is already single precision
+	 */
+	public DataFile toFloat() {
+		return FloatDataFile.copyOf(this);
 	}
-	
+
 	/**
 	 * Retrieves the data at the user-supplied index.
 	 * @param index the index of the data to retrieve
 	 * @return the data
 	 */
-	public double get(int index) {
-		synchronized (data) {
-			return data[index];
-		}
-	}
-	
+	public abstract double get(int index);
+
 	/**
-	 * Retrieves the next available data point.
-	 * @return the next available data point
+	 * Retrieves the data at the user-supplied index, which may be past the range of an <code>int</code>.
+	 * @param index the index of the data to retrieve
+	 * @return the data
 	 */
-	public double next() {
-		synchronized (data) {
-			if (readPointer >= length)
-				throw new IndexOutOfBoundsException("Read pointer: " + readPointer);
-			return data[readPointer++];
-		}
-	}
-	
+	public abstract double get(long index);
+
+	/**
+	 * Copies a range of data into a caller supplied buffer.
+	 * @param index the index of the first data point to copy
+	 * @param buffer the array to copy into
+	 * @param offset where to start copying to in <code>buffer</code>
+	 * @param count the number of data points to copy
+	 */
+	public abstract void get(long index, double[] buffer, int offset, int count);
+
 	/**
 	 * Retrieves all the data for a specified case
 	 * @param index the case to retrieve
 	 * @return an array of doubles containing the data of the case
 	 */
 	public double[] getCase(int index) {
-		synchronized (data) {
-			if ((index + 1) * caseLength > length)
-				throw new IndexOutOfBoundsException("Index: " + index);
-			return Arrays.copyOfRange(data, index * caseLength, (index + 1) * caseLength);
-		}
+		return getCase(index, new double[caseLength]);
+	}
+
+	/**
+	 * Copies all the data for a specified case into a caller supplied buffer.
+	 * @param index the case to retrieve
+	 * @param buffer an array at least <code>caseLength()</code> long to copy into
+	 * @return the buffer
+	 */
+	public double[] getCase(int index, double[] buffer) {
+		if (index < 0 || (index + 1L) * caseLength > length)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		get((long)index * caseLength, buffer, 0, caseLength);
+		return buffer;
+	}
+
+	/**
+	 * Copies one column, the data at the same position in every case, into a caller supplied buffer.
+	 * @param column the position within each case
+	 * @param buffer an array at least <code>caseCount()</code> long to copy into
+	 * @return the buffer
+	 */
+	public double[] getColumn(int column, double[] buffer) {
+		if (column < 0 || column >= caseLength)
+			throw new IndexOutOfBoundsException("Column: " + column);
+		long index = column;
+		for (int i = 0; i < caseCount; i++, index += caseLength)
+			buffer[i] = get(index);
+		return buffer;
+	}
+
+	/**
+	 * Copies a range of cases into a caller supplied buffer column by column, so each column of the range is contiguous.
+	 * @param from the first case
+	 * @param count the number of cases
+	 * @param tile an array at least <code>count * caseLength()</code> long to copy into, column <code>x</code> starting at <code>x * count</code>
+	 * @param rows scratch space at least <code>count * caseLength()</code> long, unused by column major data
+	 * @return the tile
+	 */
+	double[] getTile(int from, int count, double[] tile, double[] rows) {
+		if (from < 0 || count < 0 || from + count > caseCount)
+			throw new IndexOutOfBoundsException("From: " + from + ", count: " + count);
+		get((long)from * caseLength, rows, 0, count * caseLength);
+		for (int y = 0; y < count; y++)
+			for (int x = 0; x < caseLength; x++)
+				tile[x * count + y] = rows[y * caseLength + x];
+		return tile;
 	}
-	
+
 	/**
-	 * Returns the specified range of cases.
+	 * Returns the specified range of cases, as a view sharing this <code>DataFile</code>'s data rather than a copy.
 	 * @param from The beginning of the slice
 	 * @param to The last case in the slice
 	 * @return A DataFile containing the specified range of cases
 	 */
 	public DataFile getSlice(int from, int to) {
-		synchronized (data) {
-			if (from < 0 || from > length)
-				throw new IndexOutOfBoundsException("From: " + from);
-			if (to < 0)
-				throw new IndexOutOfBoundsException("To: " + to);
-			if (to > caseCount)
-				to = caseCount;
-			return new DataFile(Arrays.copyOfRange(data, from * caseLength, (to * caseLength)), caseLength);
-		}
+		if (from < 0 || from > caseCount)
+			throw new IndexOutOfBoundsException("From: " + from);
+		if (to < 0)
+			throw new IndexOutOfBoundsException("To: " + to);
+		if (to > caseCount)
+			to = caseCount;
+		if (to <= from)
+			throw new IllegalArgumentException("Empty slice: " + from + " to " + to);
+		return view((long)from * caseLength, (long)(to - from) * caseLength, to - from);
 	}
-	
+
+	/**
+	 * Creates a view of a range of this <code>DataFile</code>'s data, without copying it.
+	 * @param index the index of the first data point in the view
+	 * @param length the number of data points in the view
+	 * @param caseCount the number of cases in the view
+	 * @return the view
+	 */
+	abstract DataFile view(long index, long length, int caseCount);
+
 	/**
 	 * Splits this <code>DataFile</code> into a number of <code>DataFile</code>s of length smaller or equal to the original length divided by the number to split.
 	 * @param numSplit The number of <code>DataFile</code>s to split into
 	 * @return A <code>DataFile</code> array containing the split number
 	 */
 	public DataFile[] split(int numSplit) {
-		if (caseCount * caseLength != length)
+		if ((long)caseCount * caseLength != length)
 			throw new Error("Internal counters do not match");
 		DataFile[] output = new DataFile[numSplit];
 		int range = (int) Math.ceil((double)caseCount / (double)numSplit);
@@ -204,41 +440,110 @@ public class DataFile {
 		}
 		return output;
 	}
-	
+
 	/**
 	 * Concatenate that DataFile to the end of this DataFile.
 	 * @param that the DataFile to be joined to this DataFile
 	 * @return the resulting joined DataFile
+	 * @see #concat(DataFile...)
 	 */
 	public DataFile join(DataFile that) {
-		if (this.caseLength() != that.caseLength)
-			throw new Error("Case length mismatch: " + this.caseLength() + " != " + that.caseLength());
-		DataFile output = new DataFile(this.length() + that.length(), this.caseCount() + that.caseCount());
-		for (double d : data)
-			output.add(d);
-		for (int i = 0; i < that.length(); i++)
-			output.add(that.get(i));
-		return output;
+		return concat(this, that);
 	}
-	
+
+	/**
+	 * Concatenates any number of DataFiles, in order, with a single bulk copy of each into new storage.
+	 * @param parts the DataFiles to be joined
+	 * @return the resulting joined DataFile
+	 */
+	public static DataFile concat(DataFile... parts) {
+		int caseLength = parts[0].caseLength();
+		long length = 0;
+		int caseCount = 0;
+		for (DataFile part : parts) {
+			if (part.caseLength() != caseLength)
+				throw new Error("Case length mismatch: " + caseLength + " != " + part.caseLength());
+			length += part.longLength();
+			caseCount += part.caseCount();
+		}
+		DataFileBuilder output = new DataFileBuilder(length, caseCount);
+		for (DataFile part : parts)
+			output.add(part);
+		return output.build();
+	}
+
 	/**
 	 * Dumps the state of this DataFile to a file on the hard disk to be loaded later
 	 * @param file the <code>File</code> to write to
 	 * @throws IOException if the <code>File</code> cannot be written to
-	 * @see com.kylelmoy.wrm2eig.DataFile#DataFile(File)
+	 * @see com.kylelmoy.wrm2eig.DataFile#load(File)
+	 * @see com.kylelmoy.wrm2eig.DataFile#map(File)
 	 */
 	public void writeToFile(File file) throws IOException {
-		FileOutputStream fos = new FileOutputStream(file);
-		DataOutputStream dos = new DataOutputStream(fos);
-		dos.writeDouble(length);
-		dos.writeDouble(caseLength);
-		dos.writeDouble(caseCount);
-		for (double v : data)
-			dos.writeDouble(v);
-		dos.flush();
-		dos.close();
-	}
-	
+		writeToFile(file, false);
+	}
+
+	/**
+	 * Dumps the state of this DataFile to a file on the hard disk to be loaded later, in the precision it is stored in
+	 * @param file the <code>File</code> to write to
+	 * @param mapped true to write through a memory mapped region of the file, false to write in bulk through its channel
+	 * @throws IOException if the <code>File</code> cannot be written to
+	 * @see com.kylelmoy.wrm2eig.DataFile#load(File)
+	 * @see com.kylelmoy.wrm2eig.DataFile#map(File)
+	 */
+	public void writeToFile(File file, boolean mapped) throws IOException {
+		writeToFile(file, mapped, FORMAT_VERSION);
+	}
+
+	/**
+	 * Dumps the state of this DataFile to a file on the hard disk to be loaded later, in the precision it is stored in
+	 * @param file the <code>File</code> to write to
+	 * @param mapped true to write through a memory mapped region of the file, false to write in bulk through its channel
+	 * @param version <code>FORMAT_VERSION</code>, or <code>LEGACY_FORMAT</code> for older readers
+	 * @throws IOException if the <code>File</code> cannot be written to
+	 * @see com.kylelmoy.wrm2eig.DataFile#load(File)
+	 * @see com.kylelmoy.wrm2eig.DataFile#map(File)
+	 */
+	public void writeToFile(File file, boolean mapped, int version) throws IOException {
+		int headerSize = version == LEGACY_FORMAT ? DataFileHeader.LEGACY_SIZE : DataFileHeader.SIZE;
+		//A single mapping cannot exceed 2GB, so larger files are always written through the channel
+		if (!mapped || precision() != Precision.DOUBLE || headerSize + length * 8 > Integer.MAX_VALUE) {
+			DataFileWriter writer = new DataFileWriter(file, caseLength, precision(), version);
+			try {
+				writer.write(this);
+			} finally {
+				writer.close();
+			}
+			return;
+		}
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(0);
+			FileChannel fileChannel = randomAccessFile.getChannel();
+			MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, headerSize + length * 8);
+			mappedByteBuffer.position(headerSize);
+			ByteBuffer data = mappedByteBuffer.slice();
+			data.order(version == LEGACY_FORMAT ? ByteOrder.BIG_ENDIAN : ByteOrder.nativeOrder());
+			get(0, data.asDoubleBuffer(), (int)length);
+			CRC32 crc = new CRC32();
+			if (version != LEGACY_FORMAT)
+				DataFileHeader.update(crc, data);
+			mappedByteBuffer.position(0);
+			mappedByteBuffer.put(new DataFileHeader(version, Precision.DOUBLE, Layout.ROW_MAJOR, length, caseLength, caseCount, crc.getValue()).encode());
+			mappedByteBuffer.force();
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Copies a range of data into a buffer, advancing its position.
+	 * @param index the index of the first data point to copy
+	 * @param buffer the buffer to copy into
+	 * @param count the number of data points to copy
+	 */
+	abstract void get(long index, DoubleBuffer buffer, int count);
+
 	/**
 	 * @return a 2D array representation of the backing data array.
 	 */
@@ -246,50 +551,75 @@ public class DataFile {
 		int w = caseLength;
 		int h = caseCount;
 		double[][] output = new double[h][w];
-		for (int y = 0; y < h; y++) {	
-			for (int x = 0; x < w; x++) {
-				output[y][x] = data[(y * w) + x];
-			}
+		for (int y = 0; y < h; y++) {
+			get((long)y * w, output[y], 0, w);
 		}
 		return output;
 	}
-	
+
 	/**
 	 * @return The length of this <code>Data File</code>
+	 * @throws ArithmeticException if the length does not fit in an <code>int</code>
+	 * @see #longLength()
 	 */
 	public int length() {
+		if (length > Integer.MAX_VALUE)
+			throw new ArithmeticException("Length exceeds int range, use longLength(): " + length);
+		return (int)length;
+	}
+
+	/**
+	 * @return The length of this <code>Data File</code>
+	 */
+	public long longLength() {
 		return length;
 	}
-	
+
 	/**
 	 * @return The number of cases
 	 */
 	public int caseCount() {
 		return caseCount;
 	}
-	
+
 	/**
 	 * @return The case length
 	 */
 	public int caseLength() {
 		return caseLength;
 	}
-	
+
 	public boolean equals(Object obj) {
 		if (!(obj instanceof DataFile))
 			return false;
 		DataFile that = (DataFile)obj;
-		if (that.length() != this.length())
+		if (that.longLength() != this.longLength())
 			return false;
-		for (int i = 0; i < length; i ++)
+		for (long i = 0; i < length; i ++)
 			if (that.get(i) != this.get(i))
 				return false;
 		return true;
 	}
-	public static void main (String[] args) {
+	public static void main (String[] args) throws IOException {
 		double[] d = {1,1,1,2,2,2,3,3,3,4,4,4,5,5,5,6,6,6,7,7,7,8,8,8,9,9,9,10,10,10,11,11,11,12,12,12,13,13,13,14,14,14};
-		DataFile input = new DataFile(d,3);
+		DataFile input = wrap(d,3);
 		Matrix m = new Matrix(input.array());
 		m.print(input.caseLength(), input.caseCount());
+
+		//A single precision column major slice is written row major, through the double path
+		DataFile slice = input.toFloat().toLayout(Layout.COLUMN_MAJOR).getSlice(2, 10);
+		File file = File.createTempFile("slice", ".dat");
+		try {
+			slice.writeToFile(file);
+			DataFile loaded = load(file);
+			if (loaded.precision() != Precision.FLOAT || loaded.caseCount() != 8 || loaded.caseLength() != 3)
+				throw new Error("Float column major slice written with the wrong shape");
+			for (int i = 0; i < loaded.length(); i++)
+				if (loaded.get(i) != slice.get(i))
+					throw new Error("Float column major slice written wrong at " + i);
+		} finally {
+			file.delete();
+		}
+		System.out.println("Float column major slice written and read back");
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,161 @@
+package com.kylelmoy.wrm2eig;
+
+/**
+ * Fills in the data of a new <code>DataFile</code>.
+ * Data longer than a single array can hold is stored in segments.
+ * A builder is not thread-safe; give each thread its own builder, or its own range of indices.
+ * @author Kyle Moy
+ * @see com.kylelmoy.wrm2eig.DataFile
+ */
+public class DataFileBuilder {
+	/**
+	 * Masks an index down to its position within a segment
+	 */
+	private static final long SEGMENT_MASK = SegmentedDataFile.SEGMENT_SIZE - 1;
+
+	/**
+	 * Where the data is stored, until it is handed to a <code>DataFile</code>
+	 */
+	private double[][] segments;
+
+	/**
+	 * The total number of data points
+	 */
+	private final long length;
+
+	/**
+	 * The number of cases
+	 */
+	private final int caseCount;
+
+	/**
+	 * Keeps track of the seek position for writing
+	 */
+	private long writePointer;
+
+	/**
+	 * Construct a new, empty <code>DataFileBuilder</code>.
+	 * @param length the total number of data points
+	 * @param caseCount the number of cases
+	 * @throws IllegalArgumentException if the length or case count is negative
+	 */
+	public DataFileBuilder(long length, int caseCount) {
+		if (length < 0 || caseCount <= 0)
+			throw new IllegalArgumentException();
+		this.length = length;
+		this.caseCount = caseCount;
+		if (length <= DataFile.MAX_ARRAY_LENGTH)
+			segments = new double[][] { new double[(int)length] };
+		else
+			segments = SegmentedDataFile.allocate(length);
+	}
+
+	/**
+	 * Writes the supplied data at the writing position, and increments the writing position.
+	 * @param d the data to be written
+	 */
+	public void add(double d) {
+		add(writePointer++, d);
+	}
+
+	/**
+	 * Writes the supplied data at the supplied position.
+	 * @param index the position to write to
+	 * @param d the data to be written
+	 */
+	public void add(long index, double d) {
+		segment(index)[position(index)] = d;
+	}
+
+	/**
+	 * Writes a range of the supplied data at the writing position, and advances the writing position past it.
+	 * @param source the data to be written
+	 * @param offset the first index of <code>source</code> to write
+	 * @param count the number of data points to write
+	 */
+	public void add(double[] source, int offset, int count) {
+		add(writePointer, source, offset, count);
+		writePointer += count;
+	}
+
+	/**
+	 * Writes a range of the supplied data at the supplied position.
+	 * @param index the position to write to
+	 * @param source the data to be written
+	 * @param offset the first index of <code>source</code> to write
+	 * @param count the number of data points to write
+	 */
+	public void add(long index, double[] source, int offset, int count) {
+		while (count > 0) {
+			double[] segment = segment(index);
+			int position = position(index);
+			int n = Math.min(count, segment.length - position);
+			System.arraycopy(source, offset, segment, position, n);
+			index += n;
+			offset += n;
+			count -= n;
+		}
+	}
+
+	/**
+	 * Writes all the data of a <code>DataFile</code> at the writing position, and advances the writing position past it.
+	 * @param source the data to be written
+	 */
+	public void add(DataFile source) {
+		long index = 0;
+		long count = source.longLength();
+		while (count > 0) {
+			double[] segment = segment(writePointer);
+			int position = position(writePointer);
+			int n = (int)Math.min(count, segment.length - position);
+			source.get(index, segment, position, n);
+			writePointer += n;
+			index += n;
+			count -= n;
+		}
+	}
+
+	/**
+	 * @param index a position in the data
+	 * @return The segment holding the position
+	 */
+	private double[] segment(long index) {
+		if (segments.length == 1)
+			return segments[0];
+		return segments[(int)(index >>> SegmentedDataFile.SEGMENT_SHIFT)];
+	}
+
+	/**
+	 * @param index a position in the data
+	 * @return The position within its segment
+	 */
+	private int position(long index) {
+		if (segments.length == 1)
+			return (int)index;
+		return (int)(index & SEGMENT_MASK);
+	}
+
+	/**
+	 * @return The total number of data points
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Hands the data to a new <code>DataFile</code>. The builder cannot be written to afterwards.
+	 * @return the built <code>DataFile</code>
+	 */
+	public DataFile build() {
+		if (segments == null)
+			throw new IllegalStateException("Already built");
+		int caseLength = (int)(length / caseCount);
+		DataFile output;
+		if (segments.length == 1)
+			output = new ArrayDataFile(segments[0], caseLength, caseCount);
+		else
+			output = SegmentedDataFile.wrap(segments, caseLength, caseCount);
+		segments = null;
+		return output;
+	}
+}
@@ -0,0 +1,72 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Converts <code>DataFile</code> files between the legacy and the current format.
+ * Usage:
+ * <pre>
+ *	DataFileConverter [-legacy] file...
+ * </pre>
+ * Each file is rewritten in place in the current format, or the legacy format with <code>-legacy</code>,
+ * keeping its precision. Files already in the requested format are left alone.
+ * @author Kyle Moy
+ *
+ */
+public class DataFileConverter {
+	public static void main(String[] args) throws IOException {
+		int version = DataFile.FORMAT_VERSION;
+		for (String arg : args) {
+			if (arg.equals("-legacy")) {
+				version = DataFile.LEGACY_FORMAT;
+				continue;
+			}
+			File file = new File(arg);
+			System.out.println(file + "...");
+			if (convert(file, version))
+				System.out.println("\tConverted");
+			else
+				System.out.println("\tAlready in format " + version);
+		}
+	}
+
+	/**
+	 * Rewrites a file in the given format. The file is written alongside and verified before it replaces the original.
+	 * Both are loaded onto the heap rather than mapped, since a live mapping keeps a file from being replaced on Windows.
+	 * @param file the file to convert
+	 * @param version <code>DataFile.FORMAT_VERSION</code>, or <code>DataFile.LEGACY_FORMAT</code>
+	 * @return true if the file was converted, false if it was already in the given format
+	 * @throws IOException if the file cannot be read, written or replaced
+	 */
+	public static boolean convert(File file, int version) throws IOException {
+		if (formatOf(file) == version)
+			return false;
+		DataFile data = DataFile.load(file);
+		File temp = new File(file.getPath() + ".tmp");
+		data.writeToFile(temp, false, version);
+		if (!DataFile.verify(temp) || !DataFile.load(temp).equals(data)) {
+			temp.delete();
+			throw new IOException("Converted file does not match: " + file);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return true;
+	}
+
+	/**
+	 * @param file a <code>DataFile</code> file
+	 * @return The format version of the file, or <code>DataFile.LEGACY_FORMAT</code>
+	 * @throws IOException if the file cannot be read
+	 */
+	private static int formatOf(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			return DataFileHeader.read(randomAccessFile.getChannel(), file).version;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+}
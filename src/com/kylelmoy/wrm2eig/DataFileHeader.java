@@ -0,0 +1,253 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The header of a <code>DataFile</code> on disk, in either the current or the legacy format.
+ * <p>
+ * The legacy header is three big-endian doubles: length, case length and case count, followed by big-endian data.
+ * A negative length marks single precision data.
+ * <p>
+ * The current header is 64 bytes, so the data after it is aligned for any element type and for cache lines:
+ * <pre>
+ *  0  magic "WRM2EIG\0"
+ *  8  byte   format version
+ *  9  byte   byte order of the header fields and data, 'B' or 'L'
+ * 10  byte   element size, 8 for double or 4 for float
+ * 11  byte   layout, 0 for row major or 1 for column major
+ * 12  int    header size, where the data starts
+ * 16  long   total number of data points
+ * 24  int    case length
+ * 28  int    case count
+ * 32  long   CRC-32 of the data
+ * 40  ...    reserved, 0
+ * 60  int    CRC-32 of bytes 0 to 59
+ * </pre>
+ * Data is written in the native byte order of the writing machine, so it is mapped and read without conversion.
+ * @author Kyle Moy
+ * @see com.kylelmoy.wrm2eig.DataFile
+ */
+class DataFileHeader {
+	/**
+	 * The size of a legacy header
+	 */
+	static final int LEGACY_SIZE = 3 * 8;
+
+	/**
+	 * The size of a current header
+	 */
+	static final int SIZE = 64;
+
+	/**
+	 * Marks a file in the current format. Read as a legacy big-endian length, it would be well over 10^100.
+	 */
+	private static final byte[] MAGIC = { 'W', 'R', 'M', '2', 'E', 'I', 'G', 0 };
+
+	/**
+	 * The size of the scratch buffer checksums are computed through
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * The format version, or <code>DataFile.LEGACY_FORMAT</code>
+	 */
+	final int version;
+
+	/**
+	 * The byte order of the data
+	 */
+	final ByteOrder order;
+
+	/**
+	 * The precision of the data
+	 */
+	final DataFile.Precision precision;
+
+	/**
+	 * The layout of the data; the legacy format is always row major
+	 */
+	final DataFile.Layout layout;
+
+	/**
+	 * The total number of data points
+	 */
+	final long length;
+
+	/**
+	 * The number of data points in each case
+	 */
+	final int caseLength;
+
+	/**
+	 * The number of cases
+	 */
+	final int caseCount;
+
+	/**
+	 * The CRC-32 of the data; unused by the legacy format
+	 */
+	final long checksum;
+
+	/**
+	 * Construct a new <code>DataFileHeader</code>.
+	 * Legacy headers are always big-endian, current headers are written in native byte order.
+	 * @param version the format version, or <code>DataFile.LEGACY_FORMAT</code>
+	 * @param precision the precision of the data
+	 * @param layout the layout of the data
+	 * @param length the total number of data points
+	 * @param caseLength the length of each individual case
+	 * @param caseCount the number of cases
+	 * @param checksum the CRC-32 of the data
+	 * @throws IllegalArgumentException if the version is not supported, or cannot store the layout
+	 */
+	DataFileHeader(int version, DataFile.Precision precision, DataFile.Layout layout, long length, int caseLength, int caseCount, long checksum) {
+		this(version, version == DataFile.LEGACY_FORMAT ? ByteOrder.BIG_ENDIAN : ByteOrder.nativeOrder(), precision, layout, length, caseLength, caseCount, checksum);
+		if (version != DataFile.LEGACY_FORMAT && version != DataFile.FORMAT_VERSION)
+			throw new IllegalArgumentException("Unsupported format version: " + version);
+		if (version == DataFile.LEGACY_FORMAT && layout != DataFile.Layout.ROW_MAJOR)
+			throw new IllegalArgumentException("The legacy format is row major only");
+	}
+
+	private DataFileHeader(int version, ByteOrder order, DataFile.Precision precision, DataFile.Layout layout, long length, int caseLength, int caseCount, long checksum) {
+		this.version = version;
+		this.order = order;
+		this.precision = precision;
+		this.layout = layout;
+		this.length = length;
+		this.caseLength = caseLength;
+		this.caseCount = caseCount;
+		this.checksum = checksum;
+	}
+
+	/**
+	 * Reads the header at the start of a file, in whichever format it was written.
+	 * @param fileChannel the file
+	 * @param file the file, named in error messages
+	 * @return the header
+	 * @throws IOException if the file cannot be read
+	 * @throws Error if the header is truncated, corrupt, or of an unsupported version
+	 */
+	static DataFileHeader read(FileChannel fileChannel, File file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(SIZE);
+		int read = 0;
+		while (header.hasRemaining() && read >= 0)
+			read = fileChannel.read(header, header.position());
+		header.flip();
+		byte[] magic = new byte[MAGIC.length];
+		if (header.remaining() >= MAGIC.length)
+			header.duplicate().get(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			//The legacy header stores its fields as doubles, which hold any length up to 2^53 exactly
+			if (header.remaining() < LEGACY_SIZE)
+				throw new Error("Truncated header: " + file);
+			long length = (long)header.getDouble();
+			int caseLength = (int)header.getDouble();
+			int caseCount = (int)header.getDouble();
+			DataFile.Precision precision = DataFile.Precision.DOUBLE;
+			if (length < 0) {
+				precision = DataFile.Precision.FLOAT;
+				length = -length;
+			}
+			return new DataFileHeader(DataFile.LEGACY_FORMAT, ByteOrder.BIG_ENDIAN, precision, DataFile.Layout.ROW_MAJOR, length, caseLength, caseCount, 0);
+		}
+		if (header.remaining() < SIZE)
+			throw new Error("Truncated header: " + file);
+		ByteOrder order = header.get(9) == 'L' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		header.order(order);
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 0, SIZE - 4);
+		if ((int)crc.getValue() != header.getInt(SIZE - 4))
+			throw new Error("Header checksum mismatch: " + file);
+		int version = header.get(8);
+		if (version != DataFile.FORMAT_VERSION)
+			throw new Error("Unsupported format version " + version + ": " + file);
+		DataFile.Precision precision;
+		switch (header.get(10)) {
+		case 8:
+			precision = DataFile.Precision.DOUBLE;
+			break;
+		case 4:
+			precision = DataFile.Precision.FLOAT;
+			break;
+		default:
+			throw new Error("Unsupported element size " + header.get(10) + ": " + file);
+		}
+		DataFile.Layout layout;
+		switch (header.get(11)) {
+		case 0:
+			layout = DataFile.Layout.ROW_MAJOR;
+			break;
+		case 1:
+			layout = DataFile.Layout.COLUMN_MAJOR;
+			break;
+		default:
+			throw new Error("Unsupported layout " + header.get(11) + ": " + file);
+		}
+		if (header.getInt(12) != SIZE)
+			throw new Error("Unexpected header size " + header.getInt(12) + ": " + file);
+		return new DataFileHeader(version, order, precision, layout, header.getLong(16), header.getInt(24), header.getInt(28), header.getLong(32));
+	}
+
+	/**
+	 * @return The size of this header in the file, where the data starts
+	 */
+	int size() {
+		return version == DataFile.LEGACY_FORMAT ? LEGACY_SIZE : SIZE;
+	}
+
+	/**
+	 * Encodes this header as it is laid out in the file.
+	 * @return a buffer holding the header, ready to be written
+	 */
+	ByteBuffer encode() {
+		ByteBuffer header = ByteBuffer.allocate(size()).order(order);
+		if (version == DataFile.LEGACY_FORMAT) {
+			//Single precision is flagged by a negative length
+			header.putDouble(precision == DataFile.Precision.FLOAT ? -length : length);
+			header.putDouble(caseLength);
+			header.putDouble(caseCount);
+		} else {
+			header.put(MAGIC);
+			header.put((byte)version);
+			header.put((byte)(order == ByteOrder.LITTLE_ENDIAN ? 'L' : 'B'));
+			header.put((byte)precision.size);
+			header.put((byte)(layout == DataFile.Layout.COLUMN_MAJOR ? 1 : 0));
+			header.putInt(SIZE);
+			header.putLong(length);
+			header.putInt(caseLength);
+			header.putInt(caseCount);
+			header.putLong(checksum);
+			CRC32 crc = new CRC32();
+			crc.update(header.array(), 0, SIZE - 4);
+			header.putInt(SIZE - 4, (int)crc.getValue());
+		}
+		header.clear();
+		return header;
+	}
+
+	/**
+	 * Adds the remaining bytes of a buffer to a checksum, without moving its position.
+	 * @param crc the checksum
+	 * @param buffer the bytes to add
+	 */
+	static void update(CRC32 crc, ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			return;
+		}
+		//Direct and mapped buffers are copied through a scratch array
+		ByteBuffer view = buffer.duplicate();
+		byte[] scratch = new byte[Math.min(BUFFER_SIZE, view.remaining())];
+		while (view.hasRemaining()) {
+			int n = Math.min(scratch.length, view.remaining());
+			view.get(scratch, 0, n);
+			crc.update(scratch, 0, n);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.la4j.factory.Basic2DFactory;
+import org.la4j.factory.Factory;
+import org.la4j.matrix.AbstractMatrix;
+import org.la4j.matrix.Matrix;
+
+/**
+ * A read-only la4j matrix view of a <code>DataFile</code>, without copying its data.
+ * Each case is a row, or with <code>transpose()</code>, a column; transposing is also a view.
+ * Results of operations on the view are created by its factory, as ordinary la4j matrices,
+ * unless a factory from <code>DataFileMatrixBuilder</code> is passed instead.
+ * Multiplying with the view on the left reads each case in bulk; keep the view on the left when it is the larger operand.
+ * @author Kyle Moy
+ * @see com.kylelmoy.wrm2eig.DataFileMatrixBuilder
+ */
+public class DataFileMatrix extends AbstractMatrix {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The data being viewed
+	 */
+	private final DataFile data;
+
+	/**
+	 * Whether each case is a column, rather than a row
+	 */
+	private final boolean transposed;
+
+	/**
+	 * Construct a new <code>DataFileMatrix</code> with each case as a row.
+	 * @param data the data to view
+	 */
+	public DataFileMatrix(DataFile data) {
+		this(data, false);
+	}
+
+	/**
+	 * Construct a new <code>DataFileMatrix</code>.
+	 * @param data the data to view
+	 * @param transposed true to view each case as a column, false to view it as a row
+	 */
+	public DataFileMatrix(DataFile data, boolean transposed) {
+		super(new Basic2DFactory(), transposed ? data.caseLength() : data.caseCount(), transposed ? data.caseCount() : data.caseLength());
+		this.data = data;
+		this.transposed = transposed;
+	}
+
+	@Override
+	public double get(int i, int j) {
+		if (transposed)
+			return data.get((long)j * data.caseLength() + i);
+		return data.get((long)i * data.caseLength() + j);
+	}
+
+	/**
+	 * Unsupported, the view is read-only.
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public void set(int i, int j, double value) {
+		throw new UnsupportedOperationException("DataFile matrices are read-only");
+	}
+
+	/**
+	 * Multiplies this view by a matrix, reading a row of the view at a time.
+	 * The right hand side is copied into a buffer once, so it should be the smaller operand.
+	 * @param that the right hand side
+	 * @param factory creates the result
+	 * @return the product
+	 */
+	@Override
+	public Matrix multiply(Matrix that, Factory factory) {
+		ensureFactoryIsNotNull(factory);
+		ensureArgumentIsNotNull(that, "matrix");
+		if (columns != that.rows())
+			fail("Wrong matrix dimensions: " + that.rows() + "x" + that.columns() + ". Should be: " + columns + "x_.");
+		int n = that.columns();
+		Matrix result = factory.createMatrix(rows, n);
+		//Each column of the right hand side, contiguous
+		double[][] right = new double[n][columns];
+		for (int j = 0; j < n; j++)
+			for (int k = 0; k < columns; k++)
+				right[j][k] = that.get(k, j);
+		double[] row = new double[columns];
+		for (int i = 0; i < rows; i++) {
+			if (transposed) {
+				for (int k = 0; k < columns; k++)
+					row[k] = data.get((long)k * data.caseLength() + i);
+			} else {
+				data.get((long)i * data.caseLength(), row, 0, columns);
+			}
+			for (int j = 0; j < n; j++) {
+				double[] column = right[j];
+				double sum = 0;
+				for (int k = 0; k < columns; k++)
+					sum += row[k] * column[k];
+				result.set(i, j, sum);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return A view of the same data with rows and columns swapped
+	 */
+	@Override
+	public Matrix transpose() {
+		return new DataFileMatrix(data, !transposed);
+	}
+
+	/**
+	 * Unsupported, the view is backed by a <code>DataFile</code>; write the <code>DataFile</code> instead.
+	 * @throws NotSerializableException always
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		throw new NotSerializableException(getClass().getName());
+	}
+
+	/**
+	 * Unsupported, the view is backed by a <code>DataFile</code>; load the <code>DataFile</code> instead.
+	 * @throws NotSerializableException always
+	 */
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		throw new NotSerializableException(getClass().getName());
+	}
+}
@@ -0,0 +1,110 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.la4j.factory.Basic2DFactory;
+import org.la4j.factory.Factory;
+import org.la4j.matrix.AbstractMatrix;
+import org.la4j.matrix.Matrix;
+
+/**
+ * A write-only la4j matrix that stores its entries straight into a new <code>DataFile</code>, row by row.
+ * Pass <code>factory(int, boolean)</code> to an la4j operation to have its result written here rather than into a new array,
+ * then <code>build()</code> the <code>DataFile</code>. A transposed builder stores the transpose of the matrix written to it.
+ * @author Kyle Moy
+ * @see com.kylelmoy.wrm2eig.DataFileMatrix
+ */
+public class DataFileMatrixBuilder extends AbstractMatrix {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Where the entries are stored
+	 */
+	private final DataFileBuilder builder;
+
+	/**
+	 * Whether entries are stored column by column, the transpose of the matrix
+	 */
+	private final boolean transposed;
+
+	/**
+	 * Construct a new, empty <code>DataFileMatrixBuilder</code>.
+	 * @param rows the number of rows
+	 * @param columns the number of columns
+	 * @param caseLength the case length of the built <code>DataFile</code>, which need not be the row length
+	 * @param transposed true to store the transpose of the matrix, false to store it as is
+	 * @throws IllegalArgumentException if the entries do not divide into whole cases
+	 */
+	public DataFileMatrixBuilder(int rows, int columns, int caseLength, boolean transposed) {
+		super(new Basic2DFactory(), rows, columns);
+		this.transposed = transposed;
+		long length = (long)rows * columns;
+		if (caseLength <= 0 || length % caseLength != 0)
+			throw new IllegalArgumentException("Case length mismatch: " + length + " % " + caseLength);
+		builder = new DataFileBuilder(length, (int)(length / caseLength));
+	}
+
+	/**
+	 * Creates a factory whose new matrices are <code>DataFileMatrixBuilder</code>s, for la4j operations to write their result into.
+	 * @param caseLength the case length of the built <code>DataFile</code>
+	 * @param transposed true to store the transpose of each result, false to store it as is
+	 * @return the factory
+	 */
+	public static Factory factory(final int caseLength, final boolean transposed) {
+		return new Basic2DFactory() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			public Matrix createMatrix(int rows, int columns) {
+				return new DataFileMatrixBuilder(rows, columns, caseLength, transposed);
+			}
+		};
+	}
+
+	/**
+	 * Unsupported, the matrix is write-only; build the <code>DataFile</code> to read it.
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public double get(int i, int j) {
+		throw new UnsupportedOperationException("DataFile matrix builders are write-only");
+	}
+
+	@Override
+	public void set(int i, int j, double value) {
+		if (i < 0 || i >= rows || j < 0 || j >= columns)
+			throw new IndexOutOfBoundsException("Row: " + i + ", column: " + j);
+		if (transposed)
+			builder.add((long)j * rows + i, value);
+		else
+			builder.add((long)i * columns + j, value);
+	}
+
+	/**
+	 * Hands the entries to a new <code>DataFile</code>. The matrix cannot be written to afterwards.
+	 * @return the built <code>DataFile</code>
+	 */
+	public DataFile build() {
+		return builder.build();
+	}
+
+	/**
+	 * Unsupported, build the <code>DataFile</code> and write it instead.
+	 * @throws NotSerializableException always
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		throw new NotSerializableException(getClass().getName());
+	}
+
+	/**
+	 * Unsupported, load the <code>DataFile</code> instead.
+	 * @throws NotSerializableException always
+	 */
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		throw new NotSerializableException(getClass().getName());
+	}
+}
@@ -0,0 +1,193 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Writes results to disk behind the computation that produces them.
+ * Writes are queued and carried out in order by a single writer thread, so the caller can move on to its next stage
+ * while earlier results drain. The queue is bounded, so a caller that outpaces the disk waits rather than holding every result in memory.
+ * The first write to fail is reported by the next call to <code>write</code>, <code>flush</code> or <code>close</code>, and every later write is dropped;
+ * <code>close</code> does not report it again once it has been.
+ * The writer thread is a daemon, so writes still queued when the program exits without closing the queue are lost.
+ * @author Kyle Moy
+ */
+public class DataFileWriteQueue implements Closeable {
+	/**
+	 * Tells the writer thread to stop
+	 */
+	private static final Callable<Void> STOP = new Callable<Void>() {
+		@Override
+		public Void call() {
+			return null;
+		}
+	};
+
+	/**
+	 * Released by the writer thread once every write queued before it has finished.
+	 */
+	private static class Barrier implements Callable<Void> {
+		/**
+		 * Counted down when reached
+		 */
+		private final CountDownLatch latch = new CountDownLatch(1);
+
+		@Override
+		public Void call() {
+			latch.countDown();
+			return null;
+		}
+	}
+
+	/**
+	 * Writes waiting for the writer thread
+	 */
+	private final BlockingQueue<Callable<?>> queue;
+
+	/**
+	 * Carries out the writes
+	 */
+	private final Thread thread;
+
+	/**
+	 * The first write to fail, if any
+	 */
+	private volatile Throwable failure;
+
+	/**
+	 * Whether the failure has been thrown to the caller
+	 */
+	private boolean reported;
+
+	/**
+	 * Whether the queue has been closed
+	 */
+	private boolean closed;
+
+	/**
+	 * Construct a new <code>DataFileWriteQueue</code>, and start its writer thread.
+	 * @param capacity the number of writes that may wait at once
+	 * @throws IllegalArgumentException if the capacity is not positive
+	 */
+	public DataFileWriteQueue(int capacity) {
+		queue = new ArrayBlockingQueue<Callable<?>>(capacity);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "Writer");
+		//A caller that fails without closing the queue must not be kept alive by it
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues a <code>DataFile</code> to be written to a file, waiting if the queue is full.
+	 * @param data the data to write, which must not change until written
+	 * @param file the file to write to
+	 * @throws IOException if an earlier write failed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void write(final DataFile data, final File file) throws IOException, InterruptedException {
+		submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				data.writeToFile(file);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Queues any write, waiting if the queue is full.
+	 * @param write the write, run on the writer thread
+	 * @throws IOException if an earlier write failed
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IllegalStateException if the queue has been closed
+	 */
+	public void submit(Callable<?> write) throws IOException, InterruptedException {
+		if (closed)
+			throw new IllegalStateException("Write queue closed");
+		check();
+		queue.put(write);
+	}
+
+	/**
+	 * Waits for every queued write to finish.
+	 * @throws IOException if any write failed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void flush() throws IOException, InterruptedException {
+		Barrier barrier = new Barrier();
+		submit(barrier);
+		barrier.latch.await();
+		check();
+	}
+
+	/**
+	 * Waits for every queued write to finish, and stops the writer thread.
+	 * @throws IOException if any write failed, and was not already reported
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			queue.put(STOP);
+			thread.join();
+		} catch (InterruptedException e) {
+			thread.interrupt();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing write queue", e);
+		}
+		if (!reported)
+			check();
+	}
+
+	/**
+	 * Carries out queued writes until told to stop. Once a write fails, later writes are dropped,
+	 * but barriers are still released.
+	 */
+	private void drain() {
+		try {
+			while (true) {
+				Callable<?> write = queue.take();
+				if (write == STOP)
+					return;
+				if (failure != null && !(write instanceof Barrier))
+					continue;
+				try {
+					write.call();
+				} catch (Throwable t) {
+					if (failure == null)
+						failure = t;
+				}
+			}
+		} catch (InterruptedException e) {
+			if (failure == null)
+				failure = e;
+		}
+	}
+
+	/**
+	 * @throws IOException if any write has failed
+	 */
+	private void check() throws IOException {
+		Throwable t = failure;
+		if (t == null)
+			return;
+		reported = true;
+		if (t instanceof IOException)
+			throw new IOException(t.getMessage(), t);
+		if (t instanceof Error)
+			throw new Error(t.getMessage(), t);
+		throw new IOException(t);
+	}
+}
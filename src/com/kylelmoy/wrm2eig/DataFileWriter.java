@@ -0,0 +1,273 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Streams data to a file in the layout read by <code>DataFile.load(File)</code>, without holding the whole dataset in memory.
+ * The header is written when the writer is closed, once the total length and checksum are known.
+ * Files are written in the current format, in native byte order, unless the legacy format is asked for.
+ * Data is written in the order it is given; a column major writer expects every column, one after another.
+ * Data may be written in single precision, rounding every data point to the nearest <code>float</code>.
+ * @author Kyle Moy
+ *
+ */
+public class DataFileWriter implements Closeable {
+	/**
+	 * The size of the write buffer
+	 */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * The file being written
+	 */
+	private final RandomAccessFile randomAccessFile;
+
+	/**
+	 * The channel of the file being written
+	 */
+	private final FileChannel fileChannel;
+
+	/**
+	 * Bytes waiting to be written
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * A view of <code>buffer</code> that data is staged through
+	 */
+	private final DoubleBuffer doubleBuffer;
+
+	/**
+	 * A view of <code>buffer</code> that single precision data is staged through
+	 */
+	private final FloatBuffer floatBuffer;
+
+	/**
+	 * The precision data is written in
+	 */
+	private final DataFile.Precision precision;
+
+	/**
+	 * The format version written, or <code>DataFile.LEGACY_FORMAT</code>
+	 */
+	private final int version;
+
+	/**
+	 * The layout data is written in
+	 */
+	private final DataFile.Layout layout;
+
+	/**
+	 * The checksum of the data written so far
+	 */
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * The number of data points in each case
+	 */
+	private final int caseLength;
+
+	/**
+	 * The number of data points written so far
+	 */
+	private long length;
+
+	/**
+	 * Construct a new <code>DataFileWriter</code>, truncating the file.
+	 * @param file the file to write to
+	 * @param caseLength the length of each individual case
+	 * @throws IOException if the file cannot be opened
+	 * @throws IllegalArgumentException if the case length is not positive
+	 */
+	public DataFileWriter(File file, int caseLength) throws IOException {
+		this(file, caseLength, DataFile.Precision.DOUBLE);
+	}
+
+	/**
+	 * Construct a new <code>DataFileWriter</code> writing in the given precision, truncating the file.
+	 * @param file the file to write to
+	 * @param caseLength the length of each individual case
+	 * @param precision the precision to write data in
+	 * @throws IOException if the file cannot be opened
+	 * @throws IllegalArgumentException if the case length is not positive
+	 */
+	public DataFileWriter(File file, int caseLength, DataFile.Precision precision) throws IOException {
+		this(file, caseLength, precision, DataFile.FORMAT_VERSION);
+	}
+
+	/**
+	 * Construct a new <code>DataFileWriter</code> writing in the given precision and format, truncating the file.
+	 * @param file the file to write to
+	 * @param caseLength the length of each individual case
+	 * @param precision the precision to write data in
+	 * @param version <code>DataFile.FORMAT_VERSION</code>, or <code>DataFile.LEGACY_FORMAT</code> for older readers
+	 * @throws IOException if the file cannot be opened
+	 * @throws IllegalArgumentException if the case length is not positive, or the version is not supported
+	 */
+	public DataFileWriter(File file, int caseLength, DataFile.Precision precision, int version) throws IOException {
+		this(file, caseLength, precision, version, DataFile.Layout.ROW_MAJOR);
+	}
+
+	/**
+	 * Construct a new <code>DataFileWriter</code> writing in the given precision, format and layout, truncating the file.
+	 * @param file the file to write to
+	 * @param caseLength the length of each individual case
+	 * @param precision the precision to write data in
+	 * @param version <code>DataFile.FORMAT_VERSION</code>, or <code>DataFile.LEGACY_FORMAT</code> for older readers
+	 * @param layout the layout data will be written in
+	 * @throws IOException if the file cannot be opened
+	 * @throws IllegalArgumentException if the case length is not positive, the version is not supported, or cannot store the layout
+	 */
+	public DataFileWriter(File file, int caseLength, DataFile.Precision precision, int version, DataFile.Layout layout) throws IOException {
+		if (caseLength <= 0)
+			throw new IllegalArgumentException();
+		if (version != DataFile.LEGACY_FORMAT && version != DataFile.FORMAT_VERSION)
+			throw new IllegalArgumentException("Unsupported format version: " + version);
+		if (version == DataFile.LEGACY_FORMAT && layout != DataFile.Layout.ROW_MAJOR)
+			throw new IllegalArgumentException("The legacy format is row major only");
+		this.caseLength = caseLength;
+		this.precision = precision;
+		this.version = version;
+		this.layout = layout;
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(0);
+		fileChannel = randomAccessFile.getChannel();
+		fileChannel.position(version == DataFile.LEGACY_FORMAT ? DataFileHeader.LEGACY_SIZE : DataFileHeader.SIZE);
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		buffer.order(version == DataFile.LEGACY_FORMAT ? ByteOrder.BIG_ENDIAN : ByteOrder.nativeOrder());
+		doubleBuffer = buffer.asDoubleBuffer();
+		floatBuffer = buffer.asFloatBuffer();
+	}
+
+	/**
+	 * Appends a single data point.
+	 * @param d the data to be written
+	 * @throws IOException if the file cannot be written to
+	 */
+	public void write(double d) throws IOException {
+		if (remaining() == 0)
+			flush();
+		if (precision == DataFile.Precision.FLOAT)
+			floatBuffer.put((float)d);
+		else
+			doubleBuffer.put(d);
+		length++;
+	}
+
+	/**
+	 * Appends a range of data points.
+	 * @param data the data to be written
+	 * @param offset the first index of <code>data</code> to write
+	 * @param count the number of data points to write
+	 * @throws IOException if the file cannot be written to
+	 */
+	public void write(double[] data, int offset, int count) throws IOException {
+		while (count > 0) {
+			if (remaining() == 0)
+				flush();
+			int n = Math.min(count, remaining());
+			if (precision == DataFile.Precision.FLOAT) {
+				for (int i = 0; i < n; i++)
+					floatBuffer.put((float)data[offset + i]);
+			} else {
+				doubleBuffer.put(data, offset, n);
+			}
+			offset += n;
+			count -= n;
+			length += n;
+		}
+	}
+
+	/**
+	 * Appends all the data of a <code>DataFile</code>, copying it in bulk straight into the write buffer.
+	 * @param data the data to be written
+	 * @throws IOException if the file cannot be written to
+	 */
+	public void write(DataFile data) throws IOException {
+		if (precision == DataFile.Precision.FLOAT && !(data instanceof FloatDataFile)) {
+			//Narrow through a scratch array; single precision views, like column major slices, are not FloatDataFiles either
+			double[] scratch = new double[BUFFER_SIZE / 8];
+			for (long index = 0; index < data.longLength(); index += scratch.length) {
+				int n = (int)Math.min(scratch.length, data.longLength() - index);
+				data.get(index, scratch, 0, n);
+				write(scratch, 0, n);
+			}
+			return;
+		}
+		long index = 0;
+		long count = data.longLength();
+		while (count > 0) {
+			if (remaining() == 0)
+				flush();
+			int n = (int)Math.min(count, remaining());
+			if (precision == DataFile.Precision.FLOAT)
+				((FloatDataFile)data).get(index, floatBuffer, n);
+			else
+				data.get(index, doubleBuffer, n);
+			index += n;
+			count -= n;
+			length += n;
+		}
+	}
+
+	/**
+	 * @return The number of data points written so far
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Writes any staged data, fills in the header and closes the file.
+	 * @throws IOException if the file cannot be written to
+	 * @throws Error if the data written does not divide into whole cases
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+			if (length % caseLength != 0)
+				throw new Error("Declared length, case length mismatch: " + length);
+			ByteBuffer header = new DataFileHeader(version, precision, layout, length, caseLength, (int)(length / caseLength), crc.getValue()).encode();
+			while (header.hasRemaining())
+				fileChannel.write(header, header.position());
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * @return The number of data points that can be staged before the buffer must be flushed
+	 */
+	private int remaining() {
+		return precision == DataFile.Precision.FLOAT ? floatBuffer.remaining() : doubleBuffer.remaining();
+	}
+
+	/**
+	 * Writes the staged data to the file.
+	 * @throws IOException if the file cannot be written to
+	 */
+	private void flush() throws IOException {
+		buffer.position(0);
+		if (precision == DataFile.Precision.FLOAT)
+			buffer.limit(floatBuffer.position() * 4);
+		else
+			buffer.limit(doubleBuffer.position() * 8);
+		if (version != DataFile.LEGACY_FORMAT)
+			DataFileHeader.update(crc, buffer);
+		while (buffer.hasRemaining())
+			fileChannel.write(buffer);
+		buffer.clear();
+		doubleBuffer.clear();
+		floatBuffer.clear();
+	}
+}
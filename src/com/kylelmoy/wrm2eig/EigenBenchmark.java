@@ -0,0 +1,156 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import Jama.Matrix;
+
+/**
+ * Compares the truncated eigen-solver, <code>TruncatedEigen</code>, and randomized PCA, <code>RandomizedPca</code>, against the full decomposition
+ * of <code>SymmetricEigen</code>, for the covariance of vectors at several skeleton resolutions and numbers of components.
+ * Usage:
+ * <pre>
+ *	EigenBenchmark [n...]
+ * </pre>
+ * Each <code>n</code> is a number of angles per skeleton, 48, 96, 192 and 384 unless given; each is run for 1, 6, 12 and n / 4 components.
+ * The vectors are smooth random worm shapes, a few bending modes with decreasing amplitudes and a little noise,
+ * so their spectrum falls off like that of real skeletons.
+ * For every run it reports the time of the full and truncated solvers, the Lanczos steps and residual of the truncated one, the largest relative difference
+ * in eigenvalues, and the largest 1 - |cos| between eigenworms; then the same for randomized PCA, timed from the vectors
+ * against the covariance and the full decomposition together.
+ * First, randomized PCA with its defaults is checked against the full decomposition on the real vectors of <code>data/vectors.dat</code>,
+ * whose spectrum falls off slower than the synthetic one; the run stops with an <code>Error</code> if any of the six leading eigenpairs
+ * is off by more than <code>TOLERANCE</code>, relative to its own eigenvalue.
+ * @author Kyle Moy
+ */
+public class EigenBenchmark {
+	/**
+	 * The largest relative eigenvalue difference, and 1 - |cos| between eigenworms, allowed of randomized PCA on the real vectors
+	 */
+	private static final double TOLERANCE = 0.02;
+
+	public static void main(String[] args) throws IOException {
+		//Randomized PCA against the full decomposition, on real vectors
+		File real = new File("data/vectors.dat");
+		if (real.exists()) {
+			DataFile data = DataFile.load(real);
+			int n = data.caseLength();
+			int k = 6;
+			SymmetricEigen full = new SymmetricEigen(n);
+			full.decompose(Covariance.of(data).getArray());
+			double[] fullVectors = full.vectors(k, new double[k * n]);
+			RandomizedPca randomized = new RandomizedPca(n, k);
+			randomized.decompose(data);
+			double[] randomizedVectors = randomized.vectors(k, new double[k * n]);
+			for (int i = 0; i < k; i++) {
+				double valueDifference = Math.abs(randomized.value(i) - full.value(i)) / full.value(i);
+				double dot = 0;
+				for (int j = 0; j < n; j++)
+					dot += randomizedVectors[i * n + j] * fullVectors[i * n + j];
+				double vectorDifference = 1 - Math.abs(dot);
+				System.out.printf("%s k=%d: component %d, eigenvalue difference %.3g, 1 - |cos| %.3g%n", real, k, i + 1, valueDifference, vectorDifference);
+				if (valueDifference > TOLERANCE || vectorDifference > TOLERANCE)
+					throw new Error("Randomized PCA component " + (i + 1) + " of " + real + " is off by more than " + TOLERANCE);
+			}
+		}
+
+		int[] sizes = { 48, 96, 192, 384 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+		int frames = 100000;
+		int modes = 8;
+		int passes = 5;
+		Random random = new Random(1);
+		for (int n : sizes) {
+			//Smooth random worms
+			double[] vectors = new double[frames * n];
+			for (int i = 0; i < frames; i++) {
+				double[] amplitudes = new double[modes];
+				double[] phases = new double[modes];
+				for (int f = 0; f < modes; f++) {
+					amplitudes[f] = random.nextGaussian() / (f + 1);
+					phases[f] = random.nextDouble() * Math.PI * 2;
+				}
+				double mean = 0;
+				for (int j = 0; j < n; j++) {
+					double s = (double)j / (n - 1);
+					double angle = random.nextGaussian() * 0.02;
+					for (int f = 0; f < modes; f++)
+						angle += amplitudes[f] * Math.sin(Math.PI * (f + 1) * s + phases[f]);
+					vectors[i * n + j] = angle;
+					mean += angle;
+				}
+				mean /= n;
+				for (int j = 0; j < n; j++)
+					vectors[i * n + j] -= mean;
+			}
+			DataFile data = DataFile.wrap(vectors, n);
+			long covarianceTime = Long.MAX_VALUE;
+			Matrix covariance = null;
+			for (int pass = 0; pass < passes; pass++) {
+				long time = System.nanoTime();
+				covariance = Covariance.of(data);
+				covarianceTime = Math.min(covarianceTime, System.nanoTime() - time);
+			}
+
+			SymmetricEigen full = new SymmetricEigen(n);
+			long fullTime = Long.MAX_VALUE;
+			for (int pass = 0; pass < passes; pass++) {
+				long time = System.nanoTime();
+				full.decompose(covariance.getArray());
+				fullTime = Math.min(fullTime, System.nanoTime() - time);
+			}
+			double[] fullVectors = full.vectors(n, new double[n * n]);
+			int previous = 0;
+			for (int k : new int[] { 1, 6, 12, n / 4 }) {
+				if (k <= previous || k > n)
+					continue;
+				previous = k;
+				TruncatedEigen truncated = new TruncatedEigen(n, k);
+				long truncatedTime = Long.MAX_VALUE;
+				for (int pass = 0; pass < passes; pass++) {
+					long time = System.nanoTime();
+					truncated.decompose(covariance.getArray());
+					truncatedTime = Math.min(truncatedTime, System.nanoTime() - time);
+				}
+				double[] truncatedVectors = truncated.vectors(k, new double[k * n]);
+				double valueDifference = 0;
+				double vectorDifference = 0;
+				for (int i = 0; i < k; i++) {
+					valueDifference = Math.max(valueDifference, Math.abs(truncated.value(i) - full.value(i)) / full.value(0));
+					double dot = 0;
+					for (int j = 0; j < n; j++)
+						dot += truncatedVectors[i * n + j] * fullVectors[i * n + j];
+					vectorDifference = Math.max(vectorDifference, 1 - Math.abs(dot));
+				}
+				System.out.printf("n=%d k=%d: full %.2fms, truncated %.2fms in %d steps, %s, residual %.3g; eigenvalue difference %.3g, 1 - |cos| %.3g%n",
+						n, k, fullTime / 1e6, truncatedTime / 1e6, truncated.steps(), truncated.converged() ? "converged" : "NOT converged",
+						truncated.residual(), valueDifference, vectorDifference);
+
+				RandomizedPca randomized = new RandomizedPca(n, k);
+				long randomizedTime = Long.MAX_VALUE;
+				for (int pass = 0; pass < passes; pass++) {
+					long time = System.nanoTime();
+					randomized.decompose(data);
+					randomizedTime = Math.min(randomizedTime, System.nanoTime() - time);
+				}
+				double[] randomizedVectors = randomized.vectors(k, new double[k * n]);
+				valueDifference = 0;
+				vectorDifference = 0;
+				for (int i = 0; i < k; i++) {
+					valueDifference = Math.max(valueDifference, Math.abs(randomized.value(i) - full.value(i)) / full.value(0));
+					double dot = 0;
+					for (int j = 0; j < n; j++)
+						dot += randomizedVectors[i * n + j] * fullVectors[i * n + j];
+					vectorDifference = Math.max(vectorDifference, 1 - Math.abs(dot));
+				}
+				System.out.printf("n=%d k=%d: covariance and full %.2fms, randomized %.2fms in %d passes; eigenvalue difference %.3g, 1 - |cos| %.3g%n",
+						n, k, (covarianceTime + fullTime) / 1e6, randomizedTime / 1e6, randomized.passes(), valueDifference, vectorDifference);
+			}
+		}
+	}
+}
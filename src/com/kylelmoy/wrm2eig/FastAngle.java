@@ -0,0 +1,159 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A fast approximation of <code>Math.atan2</code>, for calculating vectors when exact angles are not needed.
+ * The angle is reduced to the arc tangent of a ratio between 0 and 1, which is evaluated with the minimax polynomial
+ * of Abramowitz and Stegun 4.4.49, then unfolded into its octant. The result is within <code>MAX_ERROR</code> radians of <code>Math.atan2</code>.
+ * Zeros, infinities and NaNs are passed on to <code>Math.atan2</code>.
+ * <p>
+ * Run as a program to validate the approximation against <code>Math.atan2</code>:
+ * <pre>
+ *	FastAngle [input.dat]
+ * </pre>
+ * It reports the largest error over random and integer arguments, the speed of both, and the effect on the vectors,
+ * eigenvalues and eigenworms of a down sampled input file, <code>data/input.dat</code> unless given.
+ * @author Kyle Moy
+ */
+public class FastAngle {
+	/**
+	 * The largest difference from <code>Math.atan2</code>, in radians; the polynomial itself is within 2e-8 of the arc tangent,
+	 * and its coefficients are rounded to ten places. Vectors, less their mean angle, are within twice this.
+	 */
+	public static final double MAX_ERROR = 4e-8;
+
+	private static final double A1 = 0.9999993329;
+	private static final double A3 = -0.3332985605;
+	private static final double A5 = 0.1994653599;
+	private static final double A7 = -0.1390853351;
+	private static final double A9 = 0.0964200441;
+	private static final double A11 = -0.0559098861;
+	private static final double A13 = 0.0218612288;
+	private static final double A15 = -0.0040540580;
+
+	/**
+	 * Approximates the angle of a point from the positive x axis.
+	 * @param y the ordinate
+	 * @param x the abscissa
+	 * @return the angle, between -pi and pi, within <code>MAX_ERROR</code> of <code>Math.atan2(y, x)</code>
+	 */
+	public static double atan2(double y, double x) {
+		double ax = Math.abs(x);
+		double ay = Math.abs(y);
+		//Also false for NaN
+		if (!(ax < Double.POSITIVE_INFINITY && ay < Double.POSITIVE_INFINITY) || (ax == 0 && ay == 0))
+			return Math.atan2(y, x);
+		boolean steep = ay > ax;
+		double z = steep ? ax / ay : ay / ax;
+		double z2 = z * z;
+		double angle = z * (A1 + z2 * (A3 + z2 * (A5 + z2 * (A7 + z2 * (A9 + z2 * (A11 + z2 * (A13 + z2 * A15)))))));
+		if (steep)
+			angle = Math.PI / 2 - angle;
+		if (x < 0)
+			angle = Math.PI - angle;
+		return Math.copySign(angle, y);
+	}
+
+	public static void main(String[] args) throws IOException {
+		File inputFile = new File(args.length > 0 ? args[0] : "data/input.dat");
+		int components = 6;
+
+		//Error
+		Random random = new Random(1);
+		double maxError = 0;
+		for (int i = 0; i < 10000000; i++) {
+			double y = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(13) - 6);
+			double x = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(13) - 6);
+			maxError = Math.max(maxError, Math.abs(atan2(y, x) - Math.atan2(y, x)));
+		}
+		System.out.println("Largest error, random arguments: " + maxError);
+		maxError = 0;
+		for (int y = -1000; y <= 1000; y++) {
+			for (int x = -1000; x <= 1000; x++) {
+				if (x != 0)
+					maxError = Math.max(maxError, Math.abs(atan2(y, x) - Math.atan2(y, x)));
+			}
+		}
+		System.out.println("Largest error, integer arguments to 1000: " + maxError);
+
+		//Speed
+		double[] ys = new double[1 << 20];
+		double[] xs = new double[ys.length];
+		for (int i = 0; i < ys.length; i++) {
+			ys[i] = random.nextInt(41) - 20;
+			xs[i] = random.nextInt(41) - 20;
+		}
+		for (int pass = 0; pass < 3; pass++) {
+			double sum = 0;
+			long time = System.nanoTime();
+			for (int r = 0; r < 20; r++)
+				for (int i = 0; i < ys.length; i++)
+					sum += Math.atan2(ys[i], xs[i]);
+			long exact = System.nanoTime() - time;
+			time = System.nanoTime();
+			for (int r = 0; r < 20; r++)
+				for (int i = 0; i < ys.length; i++)
+					sum += atan2(ys[i], xs[i]);
+			long fast = System.nanoTime() - time;
+			System.out.printf("Math.atan2 %.1fns, FastAngle.atan2 %.1fns (%s)%n", exact / (20.0 * ys.length), fast / (20.0 * ys.length), sum == 0 ? "" : "ok");
+		}
+
+		//Effect on the analysis
+		if (!inputFile.exists()) {
+			System.out.println("No input file " + inputFile + ", skipping vectors and components");
+			return;
+		}
+		DataFile input = DataFile.load(inputFile);
+		long time = System.currentTimeMillis();
+		DataFile exact = Wrm2Eig.calculateVectors(input, false);
+		System.out.println("Exact vectors: " + (System.currentTimeMillis() - time) + "ms");
+		time = System.currentTimeMillis();
+		DataFile fast = Wrm2Eig.calculateVectors(input, true);
+		System.out.println("Fast vectors: " + (System.currentTimeMillis() - time) + "ms");
+		maxError = 0;
+		for (long i = 0; i < exact.longLength(); i++)
+			maxError = Math.max(maxError, Math.abs(exact.get(i) - fast.get(i)));
+		System.out.println("Largest vector difference: " + maxError);
+
+		double[] exactValues = eigenvalues(exact);
+		double[] fastValues = eigenvalues(fast);
+		DataFile exactComponents = Wrm2Eig.calculatePrincipalComponents(exact);
+		DataFile fastComponents = Wrm2Eig.calculatePrincipalComponents(fast);
+		int n = exactComponents.caseLength();
+		double[] a = new double[n];
+		double[] b = new double[n];
+		for (int k = 0; k < components; k++) {
+			exactComponents.getCase(k, a);
+			fastComponents.getCase(k, b);
+			double dot = 0;
+			for (int j = 0; j < n; j++)
+				dot += a[j] * b[j];
+			//Eigenvectors are only defined up to their sign
+			double sign = Math.signum(dot);
+			double difference = 0;
+			for (int j = 0; j < n; j++)
+				difference = Math.max(difference, Math.abs(a[j] - sign * b[j]));
+			System.out.printf("Component %d: eigenvalue %.9g, relative difference %.3g; eigenworm difference %.3g, 1 - |cos| %.3g%n",
+					k + 1, exactValues[k], Math.abs(fastValues[k] - exactValues[k]) / exactValues[k], difference, 1 - Math.abs(dot));
+		}
+	}
+
+	/**
+	 * @param vectors the vector data
+	 * @return The eigenvalues of the covariance of the vector data, largest first
+	 */
+	private static double[] eigenvalues(DataFile vectors) {
+		double[] values = Wrm2Eig.covar(vectors).eig().getRealEigenvalues();
+		Arrays.sort(values);
+		for (int i = 0; i < values.length / 2; i++) {
+			double value = values[i];
+			values[i] = values[values.length - 1 - i];
+			values[values.length - 1 - i] = value;
+		}
+		return values;
+	}
+}
@@ -0,0 +1,238 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A <code>DataFile</code> stored in single precision, at half the memory and disk of a double precision one.
+ * Data is widened to <code>double</code> as it is read, so sums and products over it still accumulate in double.
+ * Data is either held in arrays on the heap, or read straight from a memory mapped file.
+ * Like <code>SegmentedDataFile</code>, it is stored in fixed size segments, so it may be longer than a single array or mapping can hold.
+ * @author Kyle Moy
+ *
+ */
+class FloatDataFile extends DataFile {
+	/**
+	 * The size of the scratch buffer used when narrowing another <code>DataFile</code>
+	 */
+	private static final int BUFFER_SIZE = 1 << 13;
+
+	/**
+	 * Segments hold 2^SEGMENT_SHIFT data points, as many as a <code>SegmentedDataFile</code> segment, 512MB of floats
+	 */
+	private static final int SEGMENT_SHIFT = SegmentedDataFile.SEGMENT_SHIFT;
+
+	/**
+	 * The number of data points in each full segment
+	 */
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+	/**
+	 * Masks an index down to its position within a segment
+	 */
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	/**
+	 * The data, either wrapping heap arrays or views of a mapped file; every segment but the last is full
+	 */
+	private final FloatBuffer[] segments;
+
+	/**
+	 * Where this view starts in the segments
+	 */
+	private final long offset;
+
+	/**
+	 * Construct a new <code>FloatDataFile</code> around a single buffer.
+	 * @param data the data, positioned at the first data point
+	 * @param caseLength the length of each individual case
+	 * @param caseCount the number of cases
+	 */
+	FloatDataFile(FloatBuffer data, int caseLength, int caseCount) {
+		this(new FloatBuffer[] { data.slice() }, 0, data.remaining(), caseLength, caseCount);
+	}
+
+	/**
+	 * Construct a new <code>FloatDataFile</code> around a range of segments.
+	 * @param segments the segments, every one but the last <code>SEGMENT_SIZE</code> long
+	 * @param offset where the range starts
+	 * @param length the length of the range
+	 * @param caseLength the length of each individual case
+	 * @param caseCount the number of cases
+	 */
+	private FloatDataFile(FloatBuffer[] segments, long offset, long length, int caseLength, int caseCount) {
+		super(length, caseLength, caseCount);
+		this.segments = segments;
+		this.offset = offset;
+	}
+
+	/**
+	 * Copies a <code>DataFile</code> onto the heap, rounding every data point to the nearest <code>float</code>.
+	 * Single precision data is copied without rounding.
+	 * @param source the data to copy
+	 * @return a single precision copy of the data
+	 */
+	static FloatDataFile copyOf(DataFile source) {
+		long length = source.longLength();
+		float[][] segments = allocate(length);
+		double[] buffer = new double[BUFFER_SIZE];
+		for (int s = 0; s < segments.length; s++) {
+			long from = (long)s << SEGMENT_SHIFT;
+			float[] output = segments[s];
+			if (source instanceof FloatDataFile) {
+				((FloatDataFile)source).get(from, FloatBuffer.wrap(output), output.length);
+				continue;
+			}
+			for (int i = 0; i < output.length; i += BUFFER_SIZE) {
+				int n = Math.min(BUFFER_SIZE, output.length - i);
+				source.get(from + i, buffer, 0, n);
+				for (int j = 0; j < n; j++)
+					output[i + j] = (float)buffer[j];
+			}
+		}
+		return wrap(segments, source.caseLength(), source.caseCount());
+	}
+
+	/**
+	 * Allocates empty segments on the heap.
+	 * @param length the number of data points
+	 * @return the segments, at least one
+	 */
+	static float[][] allocate(long length) {
+		float[][] segments = new float[segmentCount(length)][];
+		for (int i = 0; i < segments.length; i++)
+			segments[i] = new float[(int)Math.min(SEGMENT_SIZE, length - ((long)i << SEGMENT_SHIFT))];
+		return segments;
+	}
+
+	/**
+	 * Wraps heap segments.
+	 * @param segments the segments, every one but the last full
+	 * @param caseLength the length of each individual case
+	 * @param caseCount the number of cases
+	 * @return a <code>DataFile</code> backed by the segments
+	 */
+	static FloatDataFile wrap(float[][] segments, int caseLength, int caseCount) {
+		FloatBuffer[] buffers = new FloatBuffer[segments.length];
+		long length = 0;
+		for (int i = 0; i < segments.length; i++) {
+			buffers[i] = FloatBuffer.wrap(segments[i]);
+			length += segments[i].length;
+		}
+		return new FloatDataFile(buffers, 0, length, caseLength, caseCount);
+	}
+
+	/**
+	 * Maps a region of a file in segments.
+	 * @param fileChannel the file
+	 * @param position where the data starts in the file
+	 * @param order the byte order of the data
+	 * @param length the number of data points
+	 * @param caseLength the length of each individual case
+	 * @param caseCount the number of cases
+	 * @return a <code>DataFile</code> backed by the mapped segments
+	 * @throws IOException if the file cannot be mapped
+	 */
+	static FloatDataFile map(FileChannel fileChannel, long position, ByteOrder order, long length, int caseLength, int caseCount) throws IOException {
+		FloatBuffer[] segments = new FloatBuffer[segmentCount(length)];
+		for (int i = 0; i < segments.length; i++) {
+			long from = (long)i << SEGMENT_SHIFT;
+			long size = Math.min(SEGMENT_SIZE, length - from);
+			segments[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, position + from * 4, size * 4).order(order).asFloatBuffer();
+		}
+		return new FloatDataFile(segments, 0, length, caseLength, caseCount);
+	}
+
+	/**
+	 * @param length a number of data points
+	 * @return the number of segments needed to hold them, at least one
+	 */
+	private static int segmentCount(long length) {
+		return Math.max(1, (int)((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT));
+	}
+
+	@Override
+	public Precision precision() {
+		return Precision.FLOAT;
+	}
+
+	@Override
+	public DataFile toFloat() {
+		return this;
+	}
+
+	@Override
+	public double get(int index) {
+		return get((long)index);
+	}
+
+	@Override
+	public double get(long index) {
+		if (index < 0 || index >= longLength())
+			throw new IndexOutOfBoundsException("Index: " + index);
+		long i = offset + index;
+		return segments[(int)(i >>> SEGMENT_SHIFT)].get((int)(i & SEGMENT_MASK));
+	}
+
+	@Override
+	public void get(long index, double[] buffer, int offset, int count) {
+		if (index < 0 || count < 0 || index + count > longLength())
+			throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+		long i = this.offset + index;
+		while (count > 0) {
+			FloatBuffer segment = segments[(int)(i >>> SEGMENT_SHIFT)];
+			int from = (int)(i & SEGMENT_MASK);
+			int n = Math.min(count, segment.limit() - from);
+			for (int j = 0; j < n; j++)
+				buffer[offset + j] = segment.get(from + j);
+			i += n;
+			offset += n;
+			count -= n;
+		}
+	}
+
+	@Override
+	void get(long index, DoubleBuffer buffer, int count) {
+		if (index < 0 || count < 0 || index + count > longLength())
+			throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+		long i = offset + index;
+		while (count > 0) {
+			FloatBuffer segment = segments[(int)(i >>> SEGMENT_SHIFT)];
+			int from = (int)(i & SEGMENT_MASK);
+			int n = Math.min(count, segment.limit() - from);
+			for (int j = 0; j < n; j++)
+				buffer.put(segment.get(from + j));
+			i += n;
+			count -= n;
+		}
+	}
+
+	/**
+	 * Copies a range of data into a buffer without widening it, advancing its position.
+	 * @param index the index of the first data point to copy
+	 * @param buffer the buffer to copy into
+	 * @param count the number of data points to copy
+	 */
+	void get(long index, FloatBuffer buffer, int count) {
+		if (index < 0 || count < 0 || index + count > longLength())
+			throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+		long i = offset + index;
+		while (count > 0) {
+			FloatBuffer view = segments[(int)(i >>> SEGMENT_SHIFT)].duplicate();
+			view.position((int)(i & SEGMENT_MASK));
+			int n = Math.min(count, view.remaining());
+			view.limit(view.position() + n);
+			buffer.put(view);
+			i += n;
+			count -= n;
+		}
+	}
+
+	@Override
+	DataFile view(long index, long length, int caseCount) {
+		return new FloatDataFile(segments, offset + index, length, caseLength(), caseCount);
+	}
+}
@@ -0,0 +1,62 @@
+package com.kylelmoy.wrm2eig;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * A <code>DataFile</code> read straight from a memory mapped file, without a copy on the heap.
+ * @author Kyle Moy
+ *
+ */
+class MappedDataFile extends DataFile {
+	/**
+	 * A view of the mapped data, past the header
+	 */
+	private final DoubleBuffer data;
+
+	/**
+	 * Construct a new <code>MappedDataFile</code> around a view of a mapped file.
+	 * @param data the mapped data, positioned at the first data point
+	 * @param caseLength the length of each individual case
+	 * @param caseCount the number of cases
+	 */
+	MappedDataFile(DoubleBuffer data, int caseLength, int caseCount) {
+		super(data.remaining(), caseLength, caseCount);
+		this.data = data;
+	}
+
+	@Override
+	public double get(int index) {
+		return data.get(index);
+	}
+
+	@Override
+	public double get(long index) {
+		if (index > Integer.MAX_VALUE)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		return data.get((int)index);
+	}
+
+	@Override
+	public void get(long index, double[] buffer, int offset, int count) {
+		//Bulk reads move the position, so read through a private view
+		DoubleBuffer view = data.duplicate();
+		view.position((int)index);
+		view.get(buffer, offset, count);
+	}
+
+	@Override
+	void get(long index, DoubleBuffer buffer, int count) {
+		DoubleBuffer view = data.duplicate();
+		view.position((int)index);
+		view.limit((int)index + count);
+		buffer.put(view);
+	}
+
+	@Override
+	DataFile view(long index, long length, int caseCount) {
+		DoubleBuffer view = data.duplicate();
+		view.position((int)index);
+		view.limit((int)(index + length));
+		return new MappedDataFile(view.slice(), caseLength(), caseCount);
+	}
+}
@@ -0,0 +1,346 @@
+package com.kylelmoy.wrm2eig;
+
+import java.util.Random;
+
+/**
+ * Approximate leading principal components of a <code>DataFile</code>, by the randomized range finder of Halko, Martinsson and Tropp,
+ * read in a few streaming passes without forming the covariance matrix.
+ * A random block of <code>k + oversampling</code> directions is multiplied by the centred data and back, <code>X'X</code>, in one pass over the data,
+ * a tile of cases at a time, so nothing as large as the data is held; each power iteration repeats the pass on the orthonormalized result,
+ * sharpening the block towards the leading eigenvectors. The range of the last product is orthonormalized into a basis <code>Q</code>,
+ * and one more pass gives <code>Q'X'XQ</code>, a small matrix whose eigenpairs, by <code>SymmetricEigen</code>, give the components
+ * and the eigenvalues of the covariance.
+ * The data is read <code>powerIterations + 3</code> times, once for the means; each pass costs two products with a block of
+ * <code>k + oversampling</code> columns, against the <code>n</code> columns a covariance matrix multiplies by.
+ * More oversampling or power iterations are more accurate, and slower; the basis spans <code>(X'X)^(powerIterations + 1)</code> times
+ * the random block, so the error falls off with the ratio of the eigenvalue after the block to each leading one,
+ * raised to <code>powerIterations + 1</code>.
+ * The random directions come from a fixed seed, so the result is repeatable.
+ * An instance keeps its workspace between decompositions, and is not thread safe.
+ * @author Kyle Moy
+ * @see com.kylelmoy.wrm2eig.Covariance
+ */
+class RandomizedPca {
+	/**
+	 * The default number of random directions beyond the components wanted
+	 */
+	static final int DEFAULT_OVERSAMPLING = 10;
+
+	/**
+	 * The default number of extra passes over the data
+	 */
+	static final int DEFAULT_POWER_ITERATIONS = 2;
+
+	/**
+	 * The number of data points in each tile, small enough that a tile stays in cache while it is multiplied by the block,
+	 * large enough for long runs of every column
+	 */
+	private static final int TILE_SIZE = 1 << 15;
+
+	/**
+	 * The number of columns
+	 */
+	private final int n;
+
+	/**
+	 * The number of components wanted
+	 */
+	private final int k;
+
+	/**
+	 * The number of directions in the block
+	 */
+	private final int l;
+
+	/**
+	 * The number of extra passes over the data
+	 */
+	private final int powerIterations;
+
+	/**
+	 * The block of directions, one per row, orthonormal before each pass, and the basis of the range after the last
+	 */
+	private final double[][] block;
+
+	/**
+	 * The product of the centred data and back with the block, one per row
+	 */
+	private final double[][] product;
+
+	/**
+	 * The leading eigenvalues of the covariance, largest first
+	 */
+	private final double[] values;
+
+	/**
+	 * The leading components, one per row
+	 */
+	private final double[][] vectors;
+
+	/**
+	 * Construct a new <code>RandomizedPca</code>, with <code>DEFAULT_OVERSAMPLING</code> and <code>DEFAULT_POWER_ITERATIONS</code>.
+	 * @param n the number of columns of the data
+	 * @param k the number of components to find
+	 * @throws IllegalArgumentException if <code>k</code> is not between 1 and <code>n</code>
+	 */
+	RandomizedPca(int n, int k) {
+		this(n, k, DEFAULT_OVERSAMPLING, DEFAULT_POWER_ITERATIONS);
+	}
+
+	/**
+	 * Construct a new <code>RandomizedPca</code>.
+	 * @param n the number of columns of the data
+	 * @param k the number of components to find
+	 * @param oversampling the number of random directions beyond <code>k</code>, as many as fit in <code>n</code>
+	 * @param powerIterations the number of extra passes over the data
+	 * @throws IllegalArgumentException if <code>k</code> is not between 1 and <code>n</code>, or either of the others is negative
+	 */
+	RandomizedPca(int n, int k, int oversampling, int powerIterations) {
+		if (k < 1 || k > n)
+			throw new IllegalArgumentException("Cannot find " + k + " components of " + n + " columns");
+		if (oversampling < 0 || powerIterations < 0)
+			throw new IllegalArgumentException("Oversampling: " + oversampling + ", power iterations: " + powerIterations);
+		this.n = n;
+		this.k = k;
+		this.l = Math.min(n, k + oversampling);
+		this.powerIterations = powerIterations;
+		block = new double[l][n];
+		product = new double[l][n];
+		values = new double[k];
+		vectors = new double[k][n];
+	}
+
+	/**
+	 * Finds the approximate leading components of the data, and the eigenvalues of its covariance.
+	 * @param data the data, one observation per case, in either layout
+	 * @throws IllegalArgumentException if the case length of the data is not <code>n</code>, or it has fewer than two cases
+	 */
+	void decompose(DataFile data) {
+		if (data.caseLength() != n)
+			throw new IllegalArgumentException("Expected " + n + " columns, got " + data.caseLength());
+		int m = data.caseCount();
+		if (m < 2)
+			throw new IllegalArgumentException("Cannot find the covariance of " + m + " cases");
+		double[] means = means(data);
+		Random random = new Random(1);
+		for (int c = 0; c < l; c++)
+			for (int x = 0; x < n; x++)
+				block[c][x] = random.nextGaussian();
+		orthonormalize(block, random);
+		multiply(data, means, block, product);
+		//Each power iteration, then the basis of the range of the last product, which one more pass projects the covariance onto
+		for (int i = 0; i <= powerIterations; i++) {
+			for (int c = 0; c < l; c++)
+				System.arraycopy(product[c], 0, block[c], 0, n);
+			orthonormalize(block, random);
+			multiply(data, means, block, product);
+		}
+
+		//Rayleigh-Ritz, on the covariance projected onto the basis
+		double[][] h = new double[l][l];
+		for (int a = 0; a < l; a++)
+			for (int b = a; b < l; b++)
+				h[a][b] = h[b][a] = (dot(block[a], product[b]) + dot(block[b], product[a])) / 2 / (m - 1);
+		SymmetricEigen ritz = new SymmetricEigen(l);
+		ritz.decompose(h);
+		double[] s = ritz.vectors(k, new double[k * l]);
+		for (int i = 0; i < k; i++) {
+			values[i] = ritz.value(i);
+			double[] v = vectors[i];
+			for (int x = 0; x < n; x++)
+				v[x] = 0;
+			for (int c = 0; c < l; c++) {
+				double weight = s[i * l + c];
+				double[] q = block[c];
+				for (int x = 0; x < n; x++)
+					v[x] += weight * q[x];
+			}
+		}
+	}
+
+	/**
+	 * @return The number of passes over the data each decomposition takes
+	 */
+	int passes() {
+		return powerIterations + 3;
+	}
+
+	/**
+	 * @param r the rank of the eigenvalue, 0 for the largest
+	 * @return The approximate eigenvalue of rank <code>r</code> of the covariance
+	 */
+	double value(int r) {
+		return values[r];
+	}
+
+	/**
+	 * Copies the approximate leading eigenvalues of the covariance, largest first, into a caller supplied buffer.
+	 * @param buffer an array at least <code>k</code> long
+	 * @return the buffer
+	 */
+	double[] values(double[] buffer) {
+		System.arraycopy(values, 0, buffer, 0, k);
+		return buffer;
+	}
+
+	/**
+	 * Copies the approximate leading components, largest first, into a caller supplied buffer, one after another.
+	 * @param count the number of components to copy, at most <code>k</code>
+	 * @param buffer an array at least <code>count * n</code> long
+	 * @return the buffer
+	 */
+	double[] vectors(int count, double[] buffer) {
+		for (int i = 0; i < count; i++)
+			System.arraycopy(vectors[i], 0, buffer, i * n, n);
+		return buffer;
+	}
+
+	/**
+	 * Calculates the mean of every column in one pass.
+	 * @param data the data
+	 * @return the means
+	 */
+	private double[] means(DataFile data) {
+		int m = data.caseCount();
+		int size = Math.max(1, Math.min(m, TILE_SIZE / n));
+		double[] tile = new double[size * n];
+		double[] rows = new double[size * n];
+		double[] means = new double[n];
+		for (int y0 = 0; y0 < m; y0 += size) {
+			int b = Math.min(size, m - y0);
+			data.getTile(y0, b, tile, rows);
+			for (int x = 0; x < n; x++) {
+				double sum = 0;
+				for (int i = x * b, last = i + b; i < last; i++)
+					sum += tile[i];
+				means[x] += sum;
+			}
+		}
+		for (int x = 0; x < n; x++)
+			means[x] /= m;
+		return means;
+	}
+
+	/**
+	 * Multiplies a block of directions by the centred data, and back by its transpose, in one pass a tile of cases at a time.
+	 * @param data the data
+	 * @param means the mean of every column
+	 * @param input the directions, one per row
+	 * @param output the products, one per row
+	 */
+	private void multiply(DataFile data, double[] means, double[][] input, double[][] output) {
+		int m = data.caseCount();
+		int size = Math.max(1, Math.min(m, TILE_SIZE / n));
+		double[] tile = new double[size * n];
+		double[] rows = new double[size * n];
+		//The tile times the block, column major
+		double[] y = new double[size * l];
+		for (int c = 0; c < l; c++)
+			for (int x = 0; x < n; x++)
+				output[c][x] = 0;
+		for (int y0 = 0; y0 < m; y0 += size) {
+			int b = Math.min(size, m - y0);
+			data.getTile(y0, b, tile, rows);
+			for (int x = 0; x < n; x++) {
+				double mean = means[x];
+				for (int i = x * b, last = i + b; i < last; i++)
+					tile[i] -= mean;
+			}
+			for (int i = 0; i < b * l; i++)
+				y[i] = 0;
+			//Four directions at a time, so each column of the tile is loaded once for all four
+			int c = 0;
+			for (; c + 3 < l; c += 4) {
+				int c0 = c * b;
+				int c1 = c0 + b;
+				int c2 = c1 + b;
+				int c3 = c2 + b;
+				for (int x = 0; x < n; x++) {
+					int xi = x * b;
+					double w0 = input[c][x], w1 = input[c + 1][x], w2 = input[c + 2][x], w3 = input[c + 3][x];
+					for (int i = 0; i < b; i++) {
+						double v = tile[xi + i];
+						y[c0 + i] += v * w0;
+						y[c1 + i] += v * w1;
+						y[c2 + i] += v * w2;
+						y[c3 + i] += v * w3;
+					}
+				}
+				for (int x = 0; x < n; x++) {
+					int xi = x * b;
+					double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+					for (int i = 0; i < b; i++) {
+						double v = tile[xi + i];
+						s0 += v * y[c0 + i];
+						s1 += v * y[c1 + i];
+						s2 += v * y[c2 + i];
+						s3 += v * y[c3 + i];
+					}
+					output[c][x] += s0;
+					output[c + 1][x] += s1;
+					output[c + 2][x] += s2;
+					output[c + 3][x] += s3;
+				}
+			}
+			for (; c < l; c++) {
+				int ci = c * b;
+				for (int x = 0; x < n; x++) {
+					int xi = x * b;
+					double w = input[c][x];
+					for (int i = 0; i < b; i++)
+						y[ci + i] += tile[xi + i] * w;
+				}
+				for (int x = 0; x < n; x++) {
+					int xi = x * b;
+					double sum = 0;
+					for (int i = 0; i < b; i++)
+						sum += tile[xi + i] * y[ci + i];
+					output[c][x] += sum;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Orthonormalizes the rows of a block by modified Gram-Schmidt, twice. A row that falls in the span of the ones before it,
+	 * as when the data has fewer dimensions than the block, is replaced by a random direction.
+	 * @param rows the block
+	 * @param random the source of replacement directions
+	 */
+	private void orthonormalize(double[][] rows, Random random) {
+		for (int c = 0; c < rows.length; c++) {
+			double[] q = rows[c];
+			double before = Math.sqrt(dot(q, q));
+			while (true) {
+				for (int pass = 0; pass < 2; pass++) {
+					for (int j = 0; j < c; j++) {
+						double projection = dot(rows[j], q);
+						for (int x = 0; x < n; x++)
+							q[x] -= projection * rows[j][x];
+					}
+				}
+				double norm = Math.sqrt(dot(q, q));
+				if (norm > 1e-10 * before && norm > 0) {
+					for (int x = 0; x < n; x++)
+						q[x] /= norm;
+					break;
+				}
+				for (int x = 0; x < n; x++)
+					q[x] = random.nextGaussian();
+				before = Math.sqrt(dot(q, q));
+			}
+		}
+	}
+
+	/**
+	 * @param a a vector
+	 * @param b a vector
+	 * @return The dot product of the first <code>n</code> elements of both
+	 */
+	private double dot(double[] a, double[] b) {
+		double sum = 0;
+		for (int x = 0; x < n; x++)
+			sum += a[x] * b[x];
+		return sum;
+	}
+}
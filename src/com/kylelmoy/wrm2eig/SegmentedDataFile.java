@@ -0,0 +1,173 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A <code>DataFile</code> stored in fixed size segments, for datasets longer than a single array or mapping can hold.
+ * Segments are either arrays on the heap, or regions of a memory mapped file.
+ * @author Kyle Moy
+ *
+ */
+class SegmentedDataFile extends DataFile {
+	/**
+	 * Segments hold 2^SEGMENT_SHIFT data points, 1GB of doubles
+	 */
+	static final int SEGMENT_SHIFT = 27;
+
+	/**
+	 * The number of data points in each full segment
+	 */
+	static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+	/**
+	 * Masks an index down to its position within a segment
+	 */
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	/**
+	 * Where the data is stored; every segment but the last is full
+	 */
+	private final DoubleBuffer[] segments;
+
+	/**
+	 * Where this view starts in the segments
+	 */
+	private final long offset;
+
+	/**
+	 * Construct a new <code>SegmentedDataFile</code> around a range of segments.
+	 * @param segments the segments
+	 * @param offset where the range starts
+	 * @param length the length of the range
+	 * @param caseLength the length of each individual case
+	 * @param caseCount the number of cases
+	 */
+	SegmentedDataFile(DoubleBuffer[] segments, long offset, long length, int caseLength, int caseCount) {
+		super(length, caseLength, caseCount);
+		this.segments = segments;
+		this.offset = offset;
+	}
+
+	/**
+	 * Maps a region of a file in segments.
+	 * @param fileChannel the file
+	 * @param position where the data starts in the file
+	 * @param order the byte order of the data
+	 * @param length the number of data points
+	 * @param caseLength the length of each individual case
+	 * @param caseCount the number of cases
+	 * @return a <code>DataFile</code> backed by the mapped segments
+	 * @throws IOException if the file cannot be mapped
+	 */
+	static SegmentedDataFile map(FileChannel fileChannel, long position, ByteOrder order, long length, int caseLength, int caseCount) throws IOException {
+		DoubleBuffer[] segments = new DoubleBuffer[segmentCount(length)];
+		for (int i = 0; i < segments.length; i++) {
+			long from = (long)i << SEGMENT_SHIFT;
+			long size = Math.min(SEGMENT_SIZE, length - from);
+			segments[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, position + from * 8, size * 8).order(order).asDoubleBuffer();
+		}
+		return new SegmentedDataFile(segments, 0, length, caseLength, caseCount);
+	}
+
+	/**
+	 * Allocates empty segments on the heap.
+	 * @param length the number of data points
+	 * @return the segments
+	 */
+	static double[][] allocate(long length) {
+		double[][] segments = new double[segmentCount(length)][];
+		for (int i = 0; i < segments.length; i++)
+			segments[i] = new double[(int)Math.min(SEGMENT_SIZE, length - ((long)i << SEGMENT_SHIFT))];
+		return segments;
+	}
+
+	/**
+	 * Wraps heap segments, as filled by a <code>DataFileBuilder</code>.
+	 * @param segments the segments, every one but the last full
+	 * @param caseLength the length of each individual case
+	 * @param caseCount the number of cases
+	 * @return a <code>DataFile</code> backed by the segments
+	 */
+	static SegmentedDataFile wrap(double[][] segments, int caseLength, int caseCount) {
+		DoubleBuffer[] buffers = new DoubleBuffer[segments.length];
+		long length = 0;
+		for (int i = 0; i < segments.length; i++) {
+			buffers[i] = DoubleBuffer.wrap(segments[i]);
+			length += segments[i].length;
+		}
+		return new SegmentedDataFile(buffers, 0, length, caseLength, caseCount);
+	}
+
+	/**
+	 * Copies a <code>DataFile</code> into heap segments.
+	 * @param source the data to copy
+	 * @return a heap <code>DataFile</code> holding a copy of the data
+	 */
+	static SegmentedDataFile copyOf(DataFile source) {
+		double[][] segments = allocate(source.longLength());
+		for (int i = 0; i < segments.length; i++)
+			source.get((long)i << SEGMENT_SHIFT, segments[i], 0, segments[i].length);
+		return wrap(segments, source.caseLength(), source.caseCount());
+	}
+
+	/**
+	 * @param length a number of data points
+	 * @return the number of segments needed to hold them
+	 */
+	private static int segmentCount(long length) {
+		return (int)((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+	}
+
+	@Override
+	public double get(int index) {
+		return get((long)index);
+	}
+
+	@Override
+	public double get(long index) {
+		if (index < 0 || index >= longLength())
+			throw new IndexOutOfBoundsException("Index: " + index);
+		long i = offset + index;
+		return segments[(int)(i >>> SEGMENT_SHIFT)].get((int)(i & SEGMENT_MASK));
+	}
+
+	@Override
+	public void get(long index, double[] buffer, int offset, int count) {
+		if (index < 0 || count < 0 || index + count > longLength())
+			throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+		long i = this.offset + index;
+		while (count > 0) {
+			DoubleBuffer view = segments[(int)(i >>> SEGMENT_SHIFT)].duplicate();
+			view.position((int)(i & SEGMENT_MASK));
+			int n = Math.min(count, view.remaining());
+			view.get(buffer, offset, n);
+			i += n;
+			offset += n;
+			count -= n;
+		}
+	}
+
+	@Override
+	void get(long index, DoubleBuffer buffer, int count) {
+		if (index < 0 || count < 0 || index + count > longLength())
+			throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+		long i = offset + index;
+		while (count > 0) {
+			DoubleBuffer view = segments[(int)(i >>> SEGMENT_SHIFT)].duplicate();
+			view.position((int)(i & SEGMENT_MASK));
+			int n = Math.min(count, view.remaining());
+			view.limit(view.position() + n);
+			buffer.put(view);
+			i += n;
+			count -= n;
+		}
+	}
+
+	@Override
+	DataFile view(long index, long length, int caseCount) {
+		return new SegmentedDataFile(segments, offset + index, length, caseLength(), caseCount);
+	}
+}
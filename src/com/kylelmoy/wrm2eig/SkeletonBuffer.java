@@ -0,0 +1,123 @@
+package com.kylelmoy.wrm2eig;
+
+import java.util.Arrays;
+
+/**
+ * A growable store of raw skeletons, backed by primitive arrays.
+ * Coordinates are stored as x1, y1, x2, y2, ... for every case, one after another, with the offset of each case kept alongside.
+ * @author Kyle Moy
+ *
+ */
+public class SkeletonBuffer {
+	/**
+	 * The largest array the VM will reliably allocate
+	 */
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	/**
+	 * The coordinates of every case
+	 */
+	private int[] coordinates;
+
+	/**
+	 * Where each case starts in <code>coordinates</code>, with one extra entry marking the end of the last case
+	 */
+	private int[] offsets;
+
+	/**
+	 * The number of cases
+	 */
+	private int caseCount;
+
+	/**
+	 * Construct a new, empty <code>SkeletonBuffer</code>.
+	 */
+	public SkeletonBuffer() {
+		this(1 << 16, 1 << 10);
+	}
+
+	/**
+	 * Construct a new, empty <code>SkeletonBuffer</code> with room for a number of coordinates and cases.
+	 * @param coordinateCapacity the number of coordinates to reserve room for
+	 * @param caseCapacity the number of cases to reserve room for
+	 * @throws IllegalArgumentException if either capacity is negative
+	 */
+	public SkeletonBuffer(int coordinateCapacity, int caseCapacity) {
+		if (coordinateCapacity < 0 || caseCapacity < 0)
+			throw new IllegalArgumentException();
+		coordinates = new int[coordinateCapacity];
+		offsets = new int[caseCapacity + 1];
+	}
+
+	/**
+	 * Appends a case.
+	 * @param source the coordinates of the case, stored as x1, y1, x2, y2, ...
+	 * @param points the number of points in the case
+	 */
+	public void add(int[] source, int points) {
+		int from = offsets[caseCount];
+		int to = from + points * 2;
+		if (to < from)
+			throw new OutOfMemoryError("Skeleton buffer capacity exceeded");
+		if (to > coordinates.length)
+			coordinates = Arrays.copyOf(coordinates, grow(coordinates.length, to));
+		if (caseCount + 2 > offsets.length)
+			offsets = Arrays.copyOf(offsets, grow(offsets.length, caseCount + 2));
+		System.arraycopy(source, 0, coordinates, from, points * 2);
+		offsets[++caseCount] = to;
+	}
+
+	/**
+	 * @return The number of cases
+	 */
+	public int caseCount() {
+		return caseCount;
+	}
+
+	/**
+	 * @param index the case
+	 * @return The number of points in the case
+	 */
+	public int points(int index) {
+		if (index < 0 || index >= caseCount)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		return (offsets[index + 1] - offsets[index]) / 2;
+	}
+
+	/**
+	 * @param index the case
+	 * @return Where the case starts in <code>coordinates()</code>
+	 */
+	public int offset(int index) {
+		if (index < 0 || index >= caseCount)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		return offsets[index];
+	}
+
+	/**
+	 * @return The total number of points in every case
+	 */
+	public long pointCount() {
+		return offsets[caseCount] / 2;
+	}
+
+	/**
+	 * @return The backing coordinate array. Only the first <code>pointCount() * 2</code> entries are in use.
+	 */
+	public int[] coordinates() {
+		return coordinates;
+	}
+
+	/**
+	 * Picks a new capacity about half again as large, so growing stays amortized constant time without doubling the heap.
+	 * @param capacity the current capacity
+	 * @param required the smallest acceptable capacity
+	 * @return the new capacity
+	 */
+	private static int grow(int capacity, int required) {
+		if (required > MAX_CAPACITY)
+			throw new OutOfMemoryError("Skeleton buffer capacity exceeded");
+		long capacity2 = Math.max((long)capacity + (capacity >> 1) + 16, required);
+		return (int)Math.min(capacity2, MAX_CAPACITY);
+	}
+}
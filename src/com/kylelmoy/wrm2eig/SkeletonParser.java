@@ -0,0 +1,253 @@
+package com.kylelmoy.wrm2eig;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A byte-level parser for skeleton text files in the format:
+ * 		|x1,1;y1,1|x1,2;y1,2|...|x1,n;y1,n
+ * 		...
+ * 		|xc,1;yc,1|xc,2;yc,2|...|xc,n;yc,n
+ * Each line is decoded in a single pass over the raw bytes, without creating a <code>String</code> or a regex per line.
+ * @author Kyle Moy
+ *
+ */
+public class SkeletonParser implements Closeable {
+	/**
+	 * The size of the read buffer when parsing from a channel
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Where the bytes are read from, or null if the buffer is the whole source
+	 */
+	private final ReadableByteChannel channel;
+
+	/**
+	 * The bytes waiting to be parsed
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * The coordinates of the last parsed line, stored as x1, y1, x2, y2, ...
+	 */
+	private int[] coordinates;
+
+	/**
+	 * The number of points on the last parsed line
+	 */
+	private int points;
+
+	/**
+	 * The number of lines parsed so far
+	 */
+	private long lineNumber;
+
+	/**
+	 * The byte that ended the last parsed integer
+	 */
+	private int terminator;
+
+	/**
+	 * Construct a new <code>SkeletonParser</code> reading from a <code>File</code>.
+	 * @param file the file to parse
+	 * @throws IOException if the file cannot be opened
+	 */
+	public SkeletonParser(File file) throws IOException {
+		this(new FileInputStream(file).getChannel());
+	}
+
+	/**
+	 * Construct a new <code>SkeletonParser</code> reading from a channel.
+	 * @param channel the channel to parse
+	 */
+	public SkeletonParser(ReadableByteChannel channel) {
+		this.channel = channel;
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		buffer.flip();
+		coordinates = new int[512];
+	}
+
+	/**
+	 * Construct a new <code>SkeletonParser</code> reading the remaining bytes of a buffer, such as a mapped region of a file.
+	 * @param buffer the bytes to parse
+	 */
+	public SkeletonParser(ByteBuffer buffer) {
+		this(buffer, 0);
+	}
+
+	/**
+	 * Construct a new <code>SkeletonParser</code> reading the remaining bytes of a buffer that starts partway through a file,
+	 * so line numbers count from the start of the file.
+	 * @param buffer the bytes to parse
+	 * @param firstLine the number of lines in the file before the buffer
+	 */
+	public SkeletonParser(ByteBuffer buffer, long firstLine) {
+		this.channel = null;
+		this.buffer = buffer;
+		coordinates = new int[512];
+		lineNumber = firstLine;
+	}
+
+	/**
+	 * Parses the next line of skeleton points, skipping lines holding only whitespace.
+	 * @return true if a line was parsed, false if the end of the input was reached
+	 * @throws IOException if the input cannot be read, or a point is malformed, with the line it is on
+	 */
+	public boolean nextLine() throws IOException {
+		int b = read();
+		//Lines holding only whitespace, such as blank lines at the end of the file, are skipped and not counted
+		while (b == ' ' || b == '\t' || b == '\r' || b == '\n')
+			b = read();
+		if (b == -1)
+			return false;
+		lineNumber++;
+		points = 0;
+		while (b != '\n' && b != -1) {
+			if (b != '|') {
+				b = read();
+				continue;
+			}
+			if (coordinates.length < (points + 1) * 2)
+				coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+			coordinates[points * 2] = parseInt();
+			if (terminator != ';')
+				throw malformed("skeleton point");
+			coordinates[points * 2 + 1] = parseInt();
+			//The next point, the end of the line, or the end of the input
+			if (terminator != '|' && terminator != '\r' && terminator != '\n' && terminator != -1)
+				throw malformed("skeleton point");
+			points++;
+			b = terminator;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the next whitespace separated integer, such as a flag from <code>isLoop.txt</code>.
+	 * @return the integer
+	 * @throws IOException if the input cannot be read, or the next token is not an integer
+	 * @throws NoSuchElementException if the end of the input was reached
+	 */
+	public int nextInt() throws IOException {
+		int b = read();
+		while (b == ' ' || b == '\t' || b == '\r' || b == '\n')
+			b = read();
+		if (b == -1)
+			throw new NoSuchElementException();
+		unread();
+		return parseInt();
+	}
+
+	/**
+	 * @return true if another whitespace separated token is available
+	 * @throws IOException if the input cannot be read
+	 */
+	public boolean hasNext() throws IOException {
+		int b = read();
+		while (b == ' ' || b == '\t' || b == '\r' || b == '\n')
+			b = read();
+		if (b == -1)
+			return false;
+		unread();
+		return true;
+	}
+
+	/**
+	 * @return The number of points on the last parsed line
+	 */
+	public int points() {
+		return points;
+	}
+
+	/**
+	 * @return The coordinates of the last parsed line, stored as x1, y1, x2, y2, ... The array may be longer than <code>points() * 2</code>.
+	 */
+	public int[] coordinates() {
+		return coordinates;
+	}
+
+	/**
+	 * @return The number of the last parsed line, counting from 1, and from the start of the file for a buffer given its first line;
+	 * lines holding only whitespace are not counted
+	 */
+	public long lineNumber() {
+		return lineNumber;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+	}
+
+	/**
+	 * Parses a signed decimal integer, leaving the byte that ended it in <code>terminator</code>.
+	 * @return the integer
+	 * @throws IOException if the input cannot be read, or there are no digits
+	 */
+	private int parseInt() throws IOException {
+		int b = read();
+		boolean negative = b == '-';
+		if (negative)
+			b = read();
+		if (b < '0' || b > '9')
+			throw malformed("integer");
+		int value = 0;
+		while (b >= '0' && b <= '9') {
+			value = (value * 10) + (b - '0');
+			b = read();
+		}
+		terminator = b;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * @param what what was being parsed
+	 * @return an exception naming it, and the line it is on once lines are being parsed
+	 */
+	private IOException malformed(String what) {
+		if (lineNumber == 0)
+			return new IOException("Malformed " + what);
+		return new IOException("Malformed " + what + " on line " + lineNumber);
+	}
+
+	/**
+	 * @return the next byte, or -1 at the end of the input
+	 * @throws IOException if the input cannot be read
+	 */
+	private int read() throws IOException {
+		if (!buffer.hasRemaining() && !fill())
+			return -1;
+		return buffer.get() & 0xFF;
+	}
+
+	/**
+	 * Steps back over the last byte returned by <code>read()</code>.
+	 */
+	private void unread() {
+		buffer.position(buffer.position() - 1);
+	}
+
+	/**
+	 * Refills the buffer from the channel.
+	 * @return true if more bytes are available
+	 * @throws IOException if the channel cannot be read
+	 */
+	private boolean fill() throws IOException {
+		if (channel == null)
+			return false;
+		buffer.clear();
+		int read = 0;
+		while (read == 0)
+			read = channel.read(buffer);
+		buffer.flip();
+		return read > 0;
+	}
+}
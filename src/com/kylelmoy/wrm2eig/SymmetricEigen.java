@@ -0,0 +1,316 @@
+package com.kylelmoy.wrm2eig;
+
+/**
+ * The eigendecomposition of a real symmetric matrix, such as a covariance matrix, by Householder reduction to tridiagonal form
+ * and the implicit QL algorithm, the <code>tred2</code> and <code>tql2</code> routines of EISPACK as <code>Jama</code> runs them for symmetric matrices.
+ * The arithmetic is the same, so the results are the same as <code>Jama.Matrix.eig()</code>, but the eigenvectors are held as rows rather than columns,
+ * so the rotations of the QL sweeps, and copying out each eigenvector, run along contiguous rows rather than striding down columns.
+ * The workspace is allocated once, and reused by every decomposition of the same size.
+ * Eigenvalues are ordered by sorting their indices, largest first, without moving the eigenvectors.
+ * An instance is not thread safe.
+ * @author Kyle Moy
+ */
+class SymmetricEigen {
+	/**
+	 * The size of the matrix
+	 */
+	private final int n;
+
+	/**
+	 * The matrix being reduced, and then its eigenvectors, one per row
+	 */
+	private final double[][] v;
+
+	/**
+	 * The diagonal of the tridiagonal form, and then the eigenvalues
+	 */
+	private final double[] d;
+
+	/**
+	 * The off diagonal of the tridiagonal form
+	 */
+	private final double[] e;
+
+	/**
+	 * The indices of the eigenvalues, largest first
+	 */
+	private final int[] order;
+
+	/**
+	 * Construct a new <code>SymmetricEigen</code>, allocating its workspace.
+	 * @param n the size of the matrices to decompose
+	 */
+	SymmetricEigen(int n) {
+		this.n = n;
+		v = new double[n][n];
+		d = new double[n];
+		e = new double[n];
+		order = new int[n];
+	}
+
+	/**
+	 * Decomposes a symmetric matrix. Only its symmetry is assumed, it is not checked.
+	 * @param a the matrix, <code>n</code> square, which is left unchanged
+	 * @throws IllegalArgumentException if the matrix is not <code>n</code> square
+	 */
+	void decompose(double[][] a) {
+		if (a.length != n)
+			throw new IllegalArgumentException("Expected " + n + " rows, got " + a.length);
+		for (int i = 0; i < n; i++) {
+			if (a[i].length != n)
+				throw new IllegalArgumentException("Expected " + n + " columns, got " + a[i].length);
+			//The transpose, which is the same matrix
+			System.arraycopy(a[i], 0, v[i], 0, n);
+		}
+		if (n == 0)
+			return;
+		tred2();
+		tql2();
+		sort();
+	}
+
+	/**
+	 * @return The size of the matrices decomposed
+	 */
+	int size() {
+		return n;
+	}
+
+	/**
+	 * @param k the rank of the eigenvalue, 0 for the largest
+	 * @return The eigenvalue of rank <code>k</code>
+	 */
+	double value(int k) {
+		return d[order[k]];
+	}
+
+	/**
+	 * Copies the eigenvalues, largest first, into a caller supplied buffer.
+	 * @param buffer an array at least <code>n</code> long
+	 * @return the buffer
+	 */
+	double[] values(double[] buffer) {
+		for (int k = 0; k < n; k++)
+			buffer[k] = d[order[k]];
+		return buffer;
+	}
+
+	/**
+	 * Copies the eigenvectors of the largest eigenvalues, largest first, into a caller supplied buffer, one after another.
+	 * @param count the number of eigenvectors to copy
+	 * @param buffer an array at least <code>count * n</code> long
+	 * @return the buffer
+	 */
+	double[] vectors(int count, double[] buffer) {
+		for (int k = 0; k < count; k++)
+			System.arraycopy(v[order[k]], 0, buffer, k * n, n);
+		return buffer;
+	}
+
+	/**
+	 * Orders the indices of the eigenvalues, largest first. <code>tql2</code> leaves them nearly in order,
+	 * so an insertion sort is close to linear; equal eigenvalues keep their order.
+	 */
+	private void sort() {
+		for (int i = 0; i < n; i++) {
+			int index = i;
+			double value = d[i];
+			int j = i;
+			for (; j > 0 && d[order[j - 1]] < value; j--)
+				order[j] = order[j - 1];
+			order[j] = index;
+		}
+	}
+
+	/**
+	 * Reduces the matrix to symmetric tridiagonal form by Householder transformations, accumulating them in <code>v</code>.
+	 * <code>v</code> holds the transpose of the matrix <code>Jama</code> works on, so every index is swapped.
+	 */
+	private void tred2() {
+		for (int j = 0; j < n; j++)
+			d[j] = v[j][n - 1];
+
+		//Householder reduction to tridiagonal form
+		for (int i = n - 1; i > 0; i--) {
+			//Scale to avoid under/overflow
+			double scale = 0.0;
+			double h = 0.0;
+			for (int k = 0; k < i; k++)
+				scale = scale + Math.abs(d[k]);
+			if (scale == 0.0) {
+				e[i] = d[i - 1];
+				for (int j = 0; j < i; j++) {
+					d[j] = v[j][i - 1];
+					v[j][i] = 0.0;
+					v[i][j] = 0.0;
+				}
+			} else {
+				//Generate Householder vector
+				for (int k = 0; k < i; k++) {
+					d[k] /= scale;
+					h += d[k] * d[k];
+				}
+				double f = d[i - 1];
+				double g = Math.sqrt(h);
+				if (f > 0)
+					g = -g;
+				e[i] = scale * g;
+				h = h - f * g;
+				d[i - 1] = f - g;
+				for (int j = 0; j < i; j++)
+					e[j] = 0.0;
+
+				//Apply similarity transformation to remaining columns
+				for (int j = 0; j < i; j++) {
+					f = d[j];
+					v[i][j] = f;
+					g = e[j] + v[j][j] * f;
+					for (int k = j + 1; k <= i - 1; k++) {
+						g += v[j][k] * d[k];
+						e[k] += v[j][k] * f;
+					}
+					e[j] = g;
+				}
+				f = 0.0;
+				for (int j = 0; j < i; j++) {
+					e[j] /= h;
+					f += e[j] * d[j];
+				}
+				double hh = f / (h + h);
+				for (int j = 0; j < i; j++)
+					e[j] -= hh * d[j];
+				for (int j = 0; j < i; j++) {
+					f = d[j];
+					g = e[j];
+					for (int k = j; k <= i - 1; k++)
+						v[j][k] -= (f * e[k] + g * d[k]);
+					d[j] = v[j][i - 1];
+					v[j][i] = 0.0;
+				}
+			}
+			d[i] = h;
+		}
+
+		//Accumulate transformations
+		for (int i = 0; i < n - 1; i++) {
+			v[i][n - 1] = v[i][i];
+			v[i][i] = 1.0;
+			double h = d[i + 1];
+			if (h != 0.0) {
+				for (int k = 0; k <= i; k++)
+					d[k] = v[i + 1][k] / h;
+				for (int j = 0; j <= i; j++) {
+					double g = 0.0;
+					for (int k = 0; k <= i; k++)
+						g += v[i + 1][k] * v[j][k];
+					for (int k = 0; k <= i; k++)
+						v[j][k] -= g * d[k];
+				}
+			}
+			for (int k = 0; k <= i; k++)
+				v[i + 1][k] = 0.0;
+		}
+		for (int j = 0; j < n; j++) {
+			d[j] = v[j][n - 1];
+			v[j][n - 1] = 0.0;
+		}
+		v[n - 1][n - 1] = 1.0;
+		e[0] = 0.0;
+	}
+
+	/**
+	 * Diagonalizes the tridiagonal form by the implicit QL algorithm, accumulating the rotations into the eigenvectors, one per row of <code>v</code>.
+	 */
+	private void tql2() {
+		for (int i = 1; i < n; i++)
+			e[i - 1] = e[i];
+		e[n - 1] = 0.0;
+
+		double f = 0.0;
+		double tst1 = 0.0;
+		double eps = Math.pow(2.0, -52.0);
+		for (int l = 0; l < n; l++) {
+			//Find small subdiagonal element
+			tst1 = Math.max(tst1, Math.abs(d[l]) + Math.abs(e[l]));
+			int m = l;
+			while (m < n) {
+				if (Math.abs(e[m]) <= eps * tst1)
+					break;
+				m++;
+			}
+
+			//If m == l, d[l] is an eigenvalue, otherwise iterate
+			if (m > l) {
+				do {
+					//Compute implicit shift
+					double g = d[l];
+					double p = (d[l + 1] - g) / (2.0 * e[l]);
+					double r = hypot(p, 1.0);
+					if (p < 0)
+						r = -r;
+					d[l] = e[l] / (p + r);
+					d[l + 1] = e[l] * (p + r);
+					double dl1 = d[l + 1];
+					double h = g - d[l];
+					for (int i = l + 2; i < n; i++)
+						d[i] -= h;
+					f = f + h;
+
+					//Implicit QL transformation
+					p = d[m];
+					double c = 1.0;
+					double c2 = c;
+					double c3 = c;
+					double el1 = e[l + 1];
+					double s = 0.0;
+					double s2 = 0.0;
+					for (int i = m - 1; i >= l; i--) {
+						c3 = c2;
+						c2 = c;
+						s2 = s;
+						g = c * e[i];
+						h = c * p;
+						r = hypot(p, e[i]);
+						e[i + 1] = s * r;
+						s = e[i] / r;
+						c = p / r;
+						p = c * d[i] - s * g;
+						d[i + 1] = h + s * (c * g + s * d[i]);
+
+						//Accumulate transformation, along two rows
+						double[] vi = v[i];
+						double[] vi1 = v[i + 1];
+						for (int k = 0; k < n; k++) {
+							h = vi1[k];
+							vi1[k] = s * vi[k] + c * h;
+							vi[k] = c * vi[k] - s * h;
+						}
+					}
+					p = -s * s2 * c3 * el1 * e[l] / dl1;
+					e[l] = s * p;
+					d[l] = c * p;
+
+					//Check for convergence
+				} while (Math.abs(e[l]) > eps * tst1);
+			}
+			d[l] = d[l] + f;
+			e[l] = 0.0;
+		}
+	}
+
+	/**
+	 * @param a a length
+	 * @param b a length
+	 * @return sqrt(a^2 + b^2) without under/overflow, as <code>Jama</code> calculates it
+	 */
+	private static double hypot(double a, double b) {
+		if (Math.abs(a) > Math.abs(b)) {
+			double r = b / a;
+			return Math.abs(a) * Math.sqrt(1 + r * r);
+		} else if (b != 0) {
+			double r = a / b;
+			return Math.abs(b) * Math.sqrt(1 + r * r);
+		}
+		return 0.0;
+	}
+}
@@ -0,0 +1,366 @@
+package com.kylelmoy.wrm2eig;
+
+import java.util.Random;
+
+/**
+ * The leading eigenpairs of a real symmetric matrix, such as a covariance matrix, by the Lanczos algorithm with full reorthogonalization.
+ * The matrix is multiplied against one vector at a time to build an orthonormal basis of its Krylov subspace, in which it is tridiagonal;
+ * the eigenpairs of that small tridiagonal matrix, its Ritz pairs, approximate the extreme eigenpairs of the whole matrix after far fewer steps than its size.
+ * Every new basis vector is orthogonalized against all of the previous ones, twice, so the basis stays orthonormal and no eigenvalue is found twice.
+ * The basis grows until the estimated residual of each of the leading <code>k</code> Ritz pairs is within <code>tolerance</code> of the largest eigenvalue,
+ * or until it spans the whole space, where the decomposition is exact.
+ * Each step costs one matrix vector product, against the dense decomposition of <code>SymmetricEigen</code>, which costs several for every row.
+ * The start vector is random, from a fixed seed, so decompositions are repeatable.
+ * An instance keeps its basis between decompositions of the same size, and is not thread safe.
+ * @author Kyle Moy
+ * @see com.kylelmoy.wrm2eig.SymmetricEigen
+ */
+class TruncatedEigen {
+	/**
+	 * The default residual of a converged eigenpair, relative to the largest eigenvalue
+	 */
+	static final double DEFAULT_TOLERANCE = 1e-10;
+
+	/**
+	 * The size of the matrix
+	 */
+	private final int n;
+
+	/**
+	 * The number of eigenpairs wanted
+	 */
+	private final int k;
+
+	/**
+	 * The residual of a converged eigenpair, relative to the largest eigenvalue
+	 */
+	private final double tolerance;
+
+	/**
+	 * The Lanczos basis, one vector per row, allocated as it grows, and a spare row for the product of the last
+	 */
+	private final double[][] basis;
+
+	/**
+	 * The diagonal of the tridiagonal matrix
+	 */
+	private final double[] alpha;
+
+	/**
+	 * The off diagonal of the tridiagonal matrix, <code>beta[j]</code> coupling basis vectors <code>j - 1</code> and <code>j</code>
+	 */
+	private final double[] beta;
+
+	/**
+	 * The leading eigenvalues, largest first
+	 */
+	private final double[] values;
+
+	/**
+	 * The leading eigenvectors, one per row
+	 */
+	private final double[][] vectors;
+
+	/**
+	 * The number of basis vectors built by the last decomposition
+	 */
+	private int steps;
+
+	/**
+	 * The largest residual of the leading eigenpairs of the last decomposition, relative to the largest eigenvalue
+	 */
+	private double residual;
+
+	/**
+	 * Construct a new <code>TruncatedEigen</code>, converging to <code>DEFAULT_TOLERANCE</code>.
+	 * @param n the size of the matrices to decompose
+	 * @param k the number of leading eigenpairs to find
+	 * @throws IllegalArgumentException if <code>k</code> is not between 1 and <code>n</code>
+	 */
+	TruncatedEigen(int n, int k) {
+		this(n, k, DEFAULT_TOLERANCE);
+	}
+
+	/**
+	 * Construct a new <code>TruncatedEigen</code>.
+	 * @param n the size of the matrices to decompose
+	 * @param k the number of leading eigenpairs to find
+	 * @param tolerance the residual of a converged eigenpair, relative to the largest eigenvalue
+	 * @throws IllegalArgumentException if <code>k</code> is not between 1 and <code>n</code>
+	 */
+	TruncatedEigen(int n, int k, double tolerance) {
+		if (k < 1 || k > n)
+			throw new IllegalArgumentException("Cannot find " + k + " eigenpairs of a " + n + " square matrix");
+		this.n = n;
+		this.k = k;
+		this.tolerance = tolerance;
+		basis = new double[n + 1][];
+		alpha = new double[n];
+		beta = new double[n + 1];
+		values = new double[k];
+		vectors = new double[k][n];
+	}
+
+	/**
+	 * Finds the leading eigenpairs of a symmetric matrix. Only its symmetry is assumed, it is not checked.
+	 * @param a the matrix, <code>n</code> square, which is left unchanged
+	 * @return true if every eigenpair converged to within the tolerance
+	 * @throws IllegalArgumentException if the matrix is not <code>n</code> square
+	 */
+	boolean decompose(double[][] a) {
+		if (a.length != n)
+			throw new IllegalArgumentException("Expected " + n + " rows, got " + a.length);
+		Random random = new Random(1);
+		start(0, random);
+		beta[0] = 0;
+		//Check convergence once there are enough Ritz pairs, then every k steps or quarter of the basis, whichever is more
+		int check = k;
+		SymmetricEigen ritz = null;
+		int m = 0;
+		//The scale of the matrix, to tell an exhausted subspace from rounding
+		double size = 0;
+		//The first basis vector of the block grown since the tridiagonal matrix last split
+		int block = 0;
+		//The leading Ritz value of the last block that split, which is exact, and bounds every block after it
+		double bound = Double.POSITIVE_INFINITY;
+		while (true) {
+			double[] q = basis[m];
+			double[] w = row(m + 1);
+			multiply(a, q, w);
+			alpha[m] = dot(q, w);
+			size = Math.max(size, Math.abs(alpha[m]) + beta[m]);
+			m++;
+			//Full reorthogonalization, twice, which also removes the alpha and beta components
+			orthogonalize(w, m);
+			orthogonalize(w, m);
+			double norm = Math.sqrt(dot(w, w));
+			beta[m] = norm;
+			if (m == n)
+				break;
+			//An invariant subspace; the tridiagonal matrix splits, and the basis continues from a new random vector
+			if (norm <= 1e-12 * size) {
+				beta[m] = 0;
+				bound = ritz(block, m).value(0);
+				start(m, random);
+				block = m;
+			} else {
+				for (int x = 0; x < n; x++)
+					w[x] /= norm;
+			}
+			if (m >= check) {
+				ritz = ritz(0, m);
+				if (estimate(ritz, m) <= tolerance && complete(ritz, block, m, bound))
+					break;
+				check = Math.min(n, Math.max(check + k, m + m / 4));
+			}
+		}
+		steps = m;
+		if (ritz == null || ritz.size() != m)
+			ritz = ritz(0, m);
+
+		//Ritz vectors, and their true residuals
+		double[] s = ritz.vectors(k, new double[k * m]);
+		double[] product = new double[n];
+		residual = 0;
+		double scale = Math.max(Math.abs(ritz.value(0)), Double.MIN_NORMAL);
+		for (int i = 0; i < k; i++) {
+			double[] v = vectors[i];
+			for (int x = 0; x < n; x++)
+				v[x] = 0;
+			for (int j = 0; j < m; j++) {
+				double c = s[i * m + j];
+				double[] b = basis[j];
+				for (int x = 0; x < n; x++)
+					v[x] += c * b[x];
+			}
+			values[i] = ritz.value(i);
+			multiply(a, v, product);
+			double r = 0;
+			for (int x = 0; x < n; x++) {
+				double difference = product[x] - values[i] * v[x];
+				r += difference * difference;
+			}
+			residual = Math.max(residual, Math.sqrt(r) / scale);
+		}
+		return residual <= tolerance;
+	}
+
+	/**
+	 * @return The number of basis vectors, and matrix vector products, the last decomposition took
+	 */
+	int steps() {
+		return steps;
+	}
+
+	/**
+	 * @return The largest residual, |Av - lv|, of the leading eigenpairs of the last decomposition, relative to the largest eigenvalue
+	 */
+	double residual() {
+		return residual;
+	}
+
+	/**
+	 * @return Whether every leading eigenpair of the last decomposition converged to within the tolerance
+	 */
+	boolean converged() {
+		return residual <= tolerance;
+	}
+
+	/**
+	 * @param r the rank of the eigenvalue, 0 for the largest
+	 * @return The eigenvalue of rank <code>r</code>
+	 */
+	double value(int r) {
+		return values[r];
+	}
+
+	/**
+	 * Copies the leading eigenvalues, largest first, into a caller supplied buffer.
+	 * @param buffer an array at least <code>k</code> long
+	 * @return the buffer
+	 */
+	double[] values(double[] buffer) {
+		System.arraycopy(values, 0, buffer, 0, k);
+		return buffer;
+	}
+
+	/**
+	 * Copies the eigenvectors of the largest eigenvalues, largest first, into a caller supplied buffer, one after another.
+	 * @param count the number of eigenvectors to copy, at most <code>k</code>
+	 * @param buffer an array at least <code>count * n</code> long
+	 * @return the buffer
+	 */
+	double[] vectors(int count, double[] buffer) {
+		for (int i = 0; i < count; i++)
+			System.arraycopy(vectors[i], 0, buffer, i * n, n);
+		return buffer;
+	}
+
+	/**
+	 * Decomposes the tridiagonal matrix of a range of the basis so far.
+	 * @param from the first basis vector
+	 * @param m the number of basis vectors
+	 * @return its eigenpairs, the Ritz pairs
+	 */
+	private SymmetricEigen ritz(int from, int m) {
+		int size = m - from;
+		double[][] t = new double[size][size];
+		for (int j = 0; j < size; j++) {
+			t[j][j] = alpha[from + j];
+			if (j > 0)
+				t[j][j - 1] = t[j - 1][j] = beta[from + j];
+		}
+		SymmetricEigen ritz = new SymmetricEigen(size);
+		ritz.decompose(t);
+		return ritz;
+	}
+
+	/**
+	 * Estimates the largest residual of the leading Ritz pairs, without forming them: the residual of each is the next off diagonal element
+	 * times the last component of its eigenvector of the tridiagonal matrix.
+	 * @param ritz the Ritz pairs
+	 * @param m the number of basis vectors
+	 * @return the largest residual, relative to the largest Ritz value
+	 */
+	private double estimate(SymmetricEigen ritz, int m) {
+		double[] s = ritz.vectors(k, new double[k * m]);
+		double scale = Math.max(Math.abs(ritz.value(0)), Double.MIN_NORMAL);
+		double largest = 0;
+		for (int i = 0; i < k; i++)
+			largest = Math.max(largest, Math.abs(beta[m] * s[i * m + m - 1]) / scale);
+		return largest;
+	}
+
+	/**
+	 * Whether the blocks still to come after a split can be left unexplored. Each block is orthogonal to those before it,
+	 * so its leading Ritz pair converges to the largest eigenvalue they miss, such as another copy of a repeated one;
+	 * the Ritz pairs of the split blocks have zero residuals whether or not such a copy remains.
+	 * Once a block's leading eigenvalue falls below the leading <code>k</code> Ritz values, no later block can reach them.
+	 * @param ritz the Ritz pairs of the whole basis
+	 * @param block the first basis vector of the block being grown
+	 * @param m the number of basis vectors
+	 * @param bound the leading Ritz value of the last block that split
+	 * @return true if the basis has not split, or no eigenvalue left to find could be among the leading <code>k</code>
+	 */
+	private boolean complete(SymmetricEigen ritz, int block, int m, double bound) {
+		if (block == 0)
+			return true;
+		double scale = Math.max(Math.abs(ritz.value(0)), Double.MIN_NORMAL);
+		double last = ritz.value(k - 1) - tolerance * scale;
+		if (bound < last)
+			return true;
+		if (block == m)
+			return false;
+		SymmetricEigen current = ritz(block, m);
+		double[] s = current.vectors(1, new double[m - block]);
+		return Math.abs(beta[m] * s[m - block - 1]) / scale <= tolerance && current.value(0) < last;
+	}
+
+	/**
+	 * Sets a basis vector to a random unit vector orthogonal to the ones before it.
+	 * @param m the index of the basis vector
+	 * @param random the source of the start vector
+	 */
+	private void start(int m, Random random) {
+		double[] q = row(m);
+		while (true) {
+			for (int x = 0; x < n; x++)
+				q[x] = random.nextDouble() - 0.5;
+			orthogonalize(q, m);
+			orthogonalize(q, m);
+			double norm = Math.sqrt(dot(q, q));
+			if (norm > 1e-8) {
+				for (int x = 0; x < n; x++)
+					q[x] /= norm;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param m the index of a basis vector
+	 * @return The basis vector, allocated if this is the first decomposition to reach it
+	 */
+	private double[] row(int m) {
+		if (basis[m] == null)
+			basis[m] = new double[n];
+		return basis[m];
+	}
+
+	/**
+	 * Removes the components of a vector along the first basis vectors.
+	 * @param w the vector
+	 * @param m the number of basis vectors
+	 */
+	private void orthogonalize(double[] w, int m) {
+		for (int j = 0; j < m; j++) {
+			double[] b = basis[j];
+			double c = dot(b, w);
+			for (int x = 0; x < n; x++)
+				w[x] -= c * b[x];
+		}
+	}
+
+	/**
+	 * Multiplies a symmetric matrix by a vector, a row at a time.
+	 * @param a the matrix
+	 * @param v the vector
+	 * @param output the array to store the product in
+	 */
+	private void multiply(double[][] a, double[] v, double[] output) {
+		for (int x = 0; x < n; x++)
+			output[x] = dot(a[x], v);
+	}
+
+	/**
+	 * @param a a vector
+	 * @param b a vector
+	 * @return The dot product of the first <code>n</code> elements of both
+	 */
+	private double dot(double[] a, double[] b) {
+		double sum = 0;
+		for (int x = 0; x < n; x++)
+			sum += a[x] * b[x];
+		return sum;
+	}
+}
@@ -1,328 +1,718 @@
 package com.kylelmoy.wrm2eig;
 
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Scanner;
-
-import org.la4j.matrix.dense.Basic2DMatrix;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import Jama.Matrix;
 
 public class Wrm2Eig {
-	private static class ComputeJob implements Runnable {
-		private final DataFile job;
-		private DataFile result;
-		private ComputeJob (DataFile job) {
-			this.job = job;
+	/**
+	 * The number of cases in each batch of the vectors stage; small enough that idle threads can take over the remaining work
+	 */
+	private static final int VECTOR_BATCH_SIZE = 1 << 10;
+
+	/**
+	 * The working arrays of a batch of cases, reused by later batches so each batch does not allocate and grow its own
+	 */
+	private static class Batch {
+		private double[] points = new double[0];
+		private double[] inputs = new double[0];
+		private double[] vectors = new double[0];
+		private int caseCount;
+		/**
+		 * @param array an array
+		 * @param length the length needed
+		 * @return the array, or a copy at least twice as long if it is shorter than <code>length</code>
+		 */
+		private static double[] grow(double[] array, int length) {
+			if (array.length >= length)
+				return array;
+			return Arrays.copyOf(array, Math.max(length, array.length * 2));
 		}
-		public DataFile getResult() {
-			return result;
+	}
+
+	/**
+	 * The batch each vectors stage thread works in
+	 */
+	private static final ThreadLocal<Batch> VECTOR_BATCH = new ThreadLocal<Batch>() {
+		@Override
+		protected Batch initialValue() {
+			return new Batch();
+		}
+	};
+
+	private static class VectorJob implements Callable<Void> {
+		private final DataFile input;
+		private final int firstCase;
+		private final int caseCount;
+		private final DataFileBuilder output;
+		private final boolean fastAngles;
+		private VectorJob (DataFile input, int firstCase, int caseCount, DataFileBuilder output, boolean fastAngles) {
+			this.input = input;
+			this.firstCase = firstCase;
+			this.caseCount = caseCount;
+			this.output = output;
+			this.fastAngles = fastAngles;
 		}
 		@Override
-		public void run() {
-			result = calculateVectors(job);
+		public Void call() {
+			int w = input.caseLength();
+			int n = w / 2 - 1;
+			Batch batch = VECTOR_BATCH.get();
+			double[] points = batch.points = Batch.grow(batch.points, caseCount * w);
+			double[] vectors = batch.vectors = Batch.grow(batch.vectors, caseCount * n);
+			input.get((long)firstCase * w, points, 0, caseCount * w);
+			calculateVectors(points, 0, caseCount, n, vectors, 0, fastAngles);
+			//Each batch owns its own range of the output
+			output.add((long)firstCase * n, vectors, 0, caseCount * n);
+			return null;
 		}
 	}
-	private static class EigenPair implements Comparable {
-		final public double value;
-		final public double[] vector;
-		public EigenPair(double value, double[] vector) {
-			this.value = value;
-			this.vector = vector;
+	private static class CountJob implements Callable<Integer> {
+		private final ByteBuffer chunk;
+		private CountJob (ByteBuffer chunk) {
+			this.chunk = chunk;
 		}
 		@Override
-		public int compareTo(Object obj) {
-			EigenPair that = (EigenPair)obj;
-			if (this.value > that.value) return -1;
-			if (this.value < that.value) return 1;
-			return 0;
+		public Integer call() {
+			int lines = 0;
+			int limit = chunk.limit();
+			//Lines holding only whitespace are skipped by SkeletonParser, so are not counted either
+			boolean blank = true;
+			for (int i = chunk.position(); i < limit; i++) {
+				byte b = chunk.get(i);
+				if (b == '\n') {
+					if (!blank)
+						lines++;
+					blank = true;
+				} else if (b != ' ' && b != '\t' && b != '\r') {
+					blank = false;
+				}
+			}
+			//A final line without a newline still counts
+			if (!blank)
+				lines++;
+			return lines;
 		}
-		public String toString() {
-			return ""+value;
+	}
+	private static class ParseJob implements Callable<double[]> {
+		private final ByteBuffer chunk;
+		private final boolean[] flags;
+		private final int firstLine;
+		private final int d;
+		private ParseJob (ByteBuffer chunk, boolean[] flags, int firstLine, int d) {
+			this.chunk = chunk;
+			this.flags = flags;
+			this.firstLine = firstLine;
+			this.d = d;
+		}
+		@Override
+		public double[] call() throws IOException {
+			SkeletonBuffer data = new SkeletonBuffer();
+			SkeletonParser input = new SkeletonParser(chunk, firstLine);
+			while (input.nextLine()) {
+				long line = input.lineNumber();
+				if (line > flags.length)
+					throw new NoSuchElementException("No isLoop flag for line " + line);
+				boolean isLoop = flags[(int)line - 1];
+				if (!isLoop) continue;
+				int skeletonPoints = input.points();
+				//Ignore skeleton entries with too few points
+				if (skeletonPoints < 100) {
+					continue;
+				}
+				data.add(input.coordinates(), skeletonPoints);
+			}
+			return downsample(data, d);
+		}
+	}
+	private static class StreamJob implements Callable<Batch> {
+		private final ByteBuffer chunk;
+		private final boolean[] flags;
+		private final int firstLine;
+		private final int d;
+		private final boolean keepInput;
+		private final boolean fastAngles;
+		private final Queue<Batch> free;
+		private StreamJob (ByteBuffer chunk, boolean[] flags, int firstLine, int d, boolean keepInput, boolean fastAngles, Queue<Batch> free) {
+			this.chunk = chunk;
+			this.flags = flags;
+			this.firstLine = firstLine;
+			this.d = d;
+			this.keepInput = keepInput;
+			this.fastAngles = fastAngles;
+			this.free = free;
+		}
+		@Override
+		public Batch call() throws IOException {
+			int n = d - 1;
+			SkeletonParser input = new SkeletonParser(chunk, firstLine);
+			//Work in a batch already drained, if there is one
+			Batch batch = free.poll();
+			if (batch == null)
+				batch = new Batch();
+			double[] points = batch.points = Batch.grow(batch.points, d * 2);
+			double[] inputs = batch.inputs;
+			double[] vectors = batch.vectors;
+			int caseCount = 0;
+			while (input.nextLine()) {
+				long line = input.lineNumber();
+				if (line > flags.length)
+					throw new NoSuchElementException("No isLoop flag for line " + line);
+				boolean isLoop = flags[(int)line - 1];
+				if (!isLoop) continue;
+				int skeletonPoints = input.points();
+				//Ignore skeleton entries with too few points
+				if (skeletonPoints < 100) {
+					continue;
+				}
+				vectors = Batch.grow(vectors, (caseCount + 1) * n);
+				if (keepInput)
+					inputs = Batch.grow(inputs, (caseCount + 1) * d * 2);
+				//Down sample into the kept input batch, or through scratch straight to angles
+				if (keepInput) {
+					downsample(input.coordinates(), 0, skeletonPoints, d, inputs, caseCount * d * 2);
+				} else {
+					downsample(input.coordinates(), 0, skeletonPoints, d, points, 0);
+					calculateVector(points, 0, n, vectors, caseCount * n, fastAngles);
+				}
+				caseCount ++;
+			}
+			if (keepInput)
+				calculateVectors(inputs, 0, caseCount, n, vectors, 0, fastAngles);
+			batch.inputs = inputs;
+			batch.vectors = vectors;
+			batch.caseCount = caseCount;
+			return batch;
+		}
+	}
+	private static class CovarianceJob implements Callable<Covariance> {
+		private final DataFile data;
+		private final int firstCase;
+		private final int caseCount;
+		private CovarianceJob (DataFile data, int firstCase, int caseCount) {
+			this.data = data;
+			this.firstCase = firstCase;
+			this.caseCount = caseCount;
+		}
+		@Override
+		public Covariance call() {
+			Covariance partial = new Covariance(data.caseLength());
+			partial.add(data, firstCase, caseCount);
+			return partial;
 		}
 	}
 	public static void main(String[] args) throws Exception {
+		//The number of threads each stage computes with; lower it to share the machine with other jobs
 		int t = Runtime.getRuntime().availableProcessors();
 		int d = 49;
 		int n = d - 1;
 		int c = 48;
+		//Fuse parsing and vector calculation, skipping the down sampled input
+		boolean streaming = true;
+		//Write the down sampled input to data/input.dat
+		boolean writeInput = false;
+		//Store vectors and projections in single precision, halving their memory and disk use
+		boolean singlePrecision = false;
+		//Store projections as chunked files, data/n48/i.chunks, for random access to frames without loading them
+		boolean chunked = false;
+		//Compress the chunks of chunked projections losslessly, XOR encoding each value against the previous frame or its neighbour in the frame
+		boolean compressed = false;
+		//The number of finished results that may wait to be written while computation continues
+		int writeQueue = 4;
+		//Approximate atan2 with a polynomial, to within FastAngle.MAX_ERROR radians, rather than exactly
+		boolean fastAngles = false;
+		//Find only the c leading components, with the Lanczos solver of TruncatedEigen, rather than all n; faster when c is much smaller than n
+		boolean truncated = false;
+		//Find only the c leading components approximately, with RandomizedPca, in a few passes over the vectors without forming their covariance; for very tall data
+		boolean randomized = false;
+		//The random directions RandomizedPca samples beyond c, and its extra passes over the vectors; more of either is more accurate and slower
+		int oversampling = RandomizedPca.DEFAULT_OVERSAMPLING;
+		int powerIterations = RandomizedPca.DEFAULT_POWER_ITERATIONS;
 		//Usage:
 		//	wrm2eig input output
 		// List of methods
 		
 		
-		//Parse text skeleton points
-		System.out.println("Parsing input...");
-		long time = System.currentTimeMillis();
-		DataFile input = parseInputLoops(new File("data/skeleton.txt"), d);
-		//DataFile input = new DataFile(new File("data/input.dat"));
-		input.writeToFile(new File("data/input.dat"));
-		System.out.println("\tComplete: " + (System.currentTimeMillis() - time) + "ms");
+		long time;
+		DataFile vectors;
+		//Results are written behind the computation, and drained before exiting
+		DataFileWriteQueue writer = new DataFileWriteQueue(writeQueue);
+		try {
+			if (streaming) {
+				//Parse text skeleton points and calculate vectors in one pass
+				System.out.println("Parsing input and calculating vectors...");
+				time = System.currentTimeMillis();
+				vectors = calculateVectorsStreaming(new File("data/skeleton.txt"), new File("data/isLoop.txt"), d, t, 1 << 24, writeInput ? new File("data/input.dat") : null, fastAngles);
+				System.out.println("\tComplete: " + (System.currentTimeMillis() - time) + "ms");
+			} else {
+				//Parse text skeleton points
+				System.out.println("Parsing input...");
+				time = System.currentTimeMillis();
+				DataFile input = parseInputLoopsParallel(new File("data/skeleton.txt"), new File("data/isLoop.txt"), d, t);
+				//DataFile input = DataFile.load(new File("data/input.dat"));
+				if (writeInput)
+					writer.write(input, new File("data/input.dat"));
+				System.out.println("\tComplete: " + (System.currentTimeMillis() - time) + "ms");
 		
 		
-		//Calculate Vectors
-		System.out.println("Calculating vectors...");
-		time = System.currentTimeMillis();
-		Thread[] threads = new Thread[t];
-		//Divide workload for t cores
-		DataFile[] jobs = input.split(t);
-		//Create t computers
-		ComputeJob[] compute = new ComputeJob[t];
-		for (int i = 0; i < t; i ++) {
-			compute[i] = new ComputeJob(jobs[i]);
-		}
-		//Construct t threads and begin compute
-		System.out.println("\tStarting compute threads...");
-		for (int i = 0; i < t; i ++) {
-			threads[i] = new Thread(compute[i], "Job " + i);
-			threads[i].start();
-		}
-		//Wait for thread completion
-		System.out.println("\tWaiting for thread completion...");
-		for (Thread thread : threads) {
-			thread.join();
-
-			System.out.println("\t\t" + thread.getName() + " complete...");
-		}
-		//Join results
-		System.out.println("\tJoining results...");
-		DataFile vectors = compute[0].getResult();
-		for (int i = 1; i < t; i ++) {
-			vectors = vectors.join(compute[i].getResult());
-		}
-		//DataFile vectors = calculateVectors(input);
-		vectors.writeToFile(new File("data/vectors.dat"));
-		//DataFile vectors = new DataFile(new File("data/vectors.dat"));
-		System.out.println("\tComplete: " + (System.currentTimeMillis() - time) + "ms");
+				//Calculate Vectors
+				System.out.println("Calculating vectors...");
+				time = System.currentTimeMillis();
+				vectors = calculateVectorsParallel(input, t, fastAngles);
+				//vectors = calculateVectors(input, fastAngles);
+				System.out.println("\tComplete: " + (System.currentTimeMillis() - time) + "ms");
+			}
+			if (singlePrecision)
+				vectors = vectors.toFloat();
+			writer.write(vectors, new File("data/vectors.dat"));
+			//DataFile vectors = DataFile.load(new File("data/vectors.dat"));
 
-		//PCA
-		System.out.println("Calculating principal components...");
-		time = System.currentTimeMillis();
-		DataFile components = calculatePrincipalComponents(vectors);
-		//DataFile components = new DataFile(new File("data/components.dat"));
-		components.writeToFile(new File("data/components.dat"));
-		System.out.println("\tComplete: " + (System.currentTimeMillis() - time) + "ms");
+			//PCA
+			System.out.println("Calculating principal components...");
+			time = System.currentTimeMillis();
+			//Left row major; covariance reads either layout a tile at a time, and amplitudes read whole rows through DataFileMatrix
+			DataFile components;
+			if (randomized)
+				components = calculatePrincipalComponentsRandomized(vectors, c, oversampling, powerIterations);
+			else if (truncated)
+				components = calculatePrincipalComponents(vectors, t, c);
+			else
+				components = calculatePrincipalComponents(vectors, t);
+			//DataFile components = DataFile.load(new File("data/components.dat"));
+			writer.write(components, new File("data/components.dat"));
+			System.out.println("\tComplete: " + (System.currentTimeMillis() - time) + "ms");
 		
-		//Calculate amplitudes
-		for (int i = 1; i <= c; i ++) {
-			System.out.println(i);
-			System.out.println("Calculating amplitudes...");
-			DataFile amp = calculateAmplitudes(vectors,components,i);
-			//amp.writeToFile(new File("data/amplitudes.dat"));
+			//Calculate amplitudes
+			for (int i = 1; i <= c; i ++) {
+				System.out.println(i);
+				System.out.println("Calculating amplitudes...");
+				DataFile amp = calculateAmplitudes(vectors,components,i);
+				//amp.writeToFile(new File("data/amplitudes.dat"));
 			
 			
-			//Project
-			System.out.println("Calculating projection...");
-			DataFile projected = projectData(amp, components, i);
-			projected.writeToFile(new File("data/n48/" + i + ".dat"));
-		}
-		//Done
-		System.out.println("Done!");
-	}
-	private static DataFile parseInputLoops(File file, int d) throws FileNotFoundException {
-		ArrayList<Integer> data = new ArrayList<Integer>();
-		Scanner input = new Scanner(file);
-		Scanner loops = new Scanner(new File("data/isLoop.txt"));
-		int caseCount = 0;
-		int pointCount = 0;
-		System.out.println("\tReading text...");
-		while (input.hasNext()) {
-			boolean isLoop = loops.nextInt() == 1 ? true : false;
-			String caseLine = input.nextLine();
-			if (!isLoop) continue;
-			int skeletonPoints = 0;
-			for (char c : caseLine.toCharArray()) {
-				if (c == '|')
-					skeletonPoints++;
-			}
-			//Ignore skeleton entries with too few points
-			if (skeletonPoints < 100) {
-				continue;
-			}
-			caseLine = caseLine.replaceAll("\\||;", " ");
-			Scanner caseInput = new Scanner(caseLine);
-			data.add(skeletonPoints);
-			pointCount ++;
-			for (int i = 0; i < skeletonPoints; i++) {
-				data.add(caseInput.nextInt());
-				data.add(caseInput.nextInt());
-				pointCount += 2;
-			}
-			caseInput.close();
-			caseCount ++;
-			if (caseCount % 1000 == 0)
-				System.out.println("\t\t" + caseCount);
-		}
-		input.close();
-		System.out.println("\tNumber of cases: " + caseCount);
-		System.out.println("\tNumber of points: " + pointCount);
-
-		DataFile output = new DataFile((caseCount * d * 2), caseCount);
-		//Downsample
-		System.out.println("\tDown sampling skeleton to " + d + " points...");
-		int offset = 0;
-		while (offset < data.size()){
-			int length = (int)data.get(offset++);
-			double[] x = new double[length];
-			double[] y = new double[length];
-			int index = offset;
-			for (int i = 0; i < length; i++) {
-				//int index = offset + (i * 2); //Optimization, ho!
-				x[i] = data.get(index);
-				y[i] = data.get(index + 1);
-				index += 2;
-			}
-			offset += length * 2;
-			
-			//Down Sample to d
-			double s = (double)length/(double)(d-1);
-			double[] dX = new double[d];
-			double[] dY = new double[d];
-			double c = 0;
-			for (int i = 0; i < (d-1); i++) {
-				dX[i] = x[(int)c];
-				dY[i] = y[(int)c];
-				c += s;
+				//Project
+				System.out.println("Calculating projection...");
+				DataFile projected = projectData(amp, components, i);
+				if (singlePrecision)
+					projected = projected.toFloat();
+				if (chunked) {
+					final DataFile chunks = projected;
+					final File file = new File("data/n48/" + i + ".chunks");
+					final ChunkedDataFile.Codec codec = compressed ? ChunkedDataFile.Codec.XOR : ChunkedDataFile.Codec.RAW;
+					final int frameLength = n;
+					writer.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							ChunkedDataFile.write(chunks, file, frameLength, codec);
+							return null;
+						}
+					});
+				} else {
+					writer.write(projected, new File("data/n48/" + i + ".dat"));
+				}
 			}
-			//Always include tail
-			dX[d - 1] = x[length-1];
-			dY[d - 1] = y[length-1];
-			for (int i = 0; i < d; i++) {
-				output.add(dX[i]);
-				output.add(dY[i]);
+			System.out.println("Waiting for writes...");
+			writer.flush();
+		} catch (Throwable e) {
+			//A failed write reported while closing must not hide the failure already on its way out
+			try {
+				writer.close();
+			} catch (Throwable secondary) {
+				e.addSuppressed(secondary);
 			}
+			throw e;
 		}
-		return output;
+		writer.close();
+		//Done
+		System.out.println("Done!");
 	}
 	/**
 	 * Loads skeleton points from a text file in the format:
 	 * 		|x1,1;y1,1|x1,2;y1,2|...|x1,n;y1,n
 	 * 		...
 	 * 		|xc,1;yc,1|xc,2;yc,2|...|xc,n;yc,n
-	 * (format from Ron Neihaus's MATLAB video decomposition)
+	 * (format from Ron Neihaus's MATLAB video decomposition), keeping only the cases flagged in <code>loopFile</code>.
+	 * The file is memory mapped, and chunks of whole lines are parsed on several threads.
 	 * @param file the source file
+	 * @param loopFile the file of flags marking which lines to keep
 	 * @param d the number of skeleton points to sample down to
+	 * @param t the number of threads to parse with
 	 * @return a <code>DataFile</code> containing the loaded file data
-	 * @throws FileNotFoundException if the file cannot be found
+	 * @throws IOException if a file cannot be read
+	 * @throws InterruptedException if interrupted while waiting for the parsing threads
 	 */
-	private static DataFile parseInputText(File file, int d) throws FileNotFoundException {
-		ArrayList<Integer> data = new ArrayList<Integer>();
-		Scanner input = new Scanner(file);
-		int caseCount = 0;
-		int pointCount = 0;
-		System.out.println("\tReading text...");
-		while (input.hasNext()) {
-			String caseLine = input.nextLine();
-			int skeletonPoints = 0;
-			for (char c : caseLine.toCharArray()) {
-				if (c == '|')
-					skeletonPoints++;
+	private static DataFile parseInputLoopsParallel(File file, File loopFile, int d, int t) throws IOException, InterruptedException {
+		//Flags are small, read them up front so every chunk can look up its own lines
+		boolean[] flags = readFlags(loopFile);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		FileChannel fileChannel = randomAccessFile.getChannel();
+		ExecutorService pool = Executors.newFixedThreadPool(t);
+		try {
+			//Cut the file into chunks of whole lines, several per thread for balance
+			long chunkSize = Math.max(1 << 20, Math.min(1 << 26, fileChannel.size() / (t * 4)));
+			ArrayList<ByteBuffer> chunks = mapChunks(fileChannel, chunkSize);
+			System.out.println("\tReading text in " + chunks.size() + " chunks...");
+			
+			//Count lines so each chunk knows its first line number
+			ArrayList<Future<Integer>> counts = new ArrayList<Future<Integer>>();
+			for (ByteBuffer chunk : chunks)
+				counts.add(pool.submit(new CountJob(chunk)));
+			ArrayList<Future<double[]>> parsed = new ArrayList<Future<double[]>>();
+			int firstLine = 0;
+			for (int i = 0; i < chunks.size(); i++) {
+				parsed.add(pool.submit(new ParseJob(chunks.get(i).duplicate(), flags, firstLine, d)));
+				firstLine += get(counts.get(i));
 			}
-			//Ignore skeleton entries with too few points
-			if (skeletonPoints < 100) {
-				continue;
+			
+			//Join chunk results in file order
+			double[][] results = new double[chunks.size()][];
+			long length = 0;
+			for (int i = 0; i < results.length; i++) {
+				results[i] = get(parsed.get(i));
+				length += results[i].length;
 			}
-			caseLine = caseLine.replaceAll("\\||;", " ");
-			Scanner caseInput = new Scanner(caseLine);
-			data.add(skeletonPoints);
-			pointCount ++;
-			for (int i = 0; i < skeletonPoints; i++) {
-				data.add(caseInput.nextInt());
-				data.add(caseInput.nextInt());
-				pointCount += 2;
+			int caseCount = (int)(length / (d * 2));
+			DataFileBuilder data = new DataFileBuilder(length, caseCount);
+			for (double[] result : results) {
+				data.add(result, 0, result.length);
 			}
-			caseInput.close();
-			caseCount ++;
-			if (caseCount % 1000 == 0)
-				System.out.println("\t\t" + caseCount);
+			System.out.println("\tNumber of cases: " + caseCount);
+			return data.build();
+		} finally {
+			pool.shutdown();
+			randomAccessFile.close();
 		}
-		input.close();
-		System.out.println("\tNumber of cases: " + caseCount);
-		System.out.println("\tNumber of points: " + pointCount);
-
-		DataFile output = new DataFile((caseCount * d * 2), caseCount);
-		//Downsample
-		System.out.println("\tDown sampling skeleton to " + d + " points...");
-		int offset = 0;
-		while (offset < data.size()){
-			int length = (int)data.get(offset++);
-			double[] x = new double[length];
-			double[] y = new double[length];
-			int index = offset;
-			for (int i = 0; i < length; i++) {
-				//int index = offset + (i * 2); //Optimization, ho!
-				x[i] = data.get(index);
-				y[i] = data.get(index + 1);
-				index += 2;
-			}
-			offset += length * 2;
+	}
+	
+	/**
+	 * Parses skeleton points and calculates their vectors in one fused pass, without building the down sampled input.
+	 * Chunks of the memory mapped file are parsed on several threads; each kept line is down sampled and turned
+	 * into its angles straight away. At most two chunks per thread are in flight, so memory besides the vectors
+	 * themselves depends on the batch size rather than the length of the recording. The vectors are stored as each batch finishes,
+	 * in storage sized up front for every flagged line, so only lines dropped for having too few points are allocated and left unused.
+	 * @param file the source file
+	 * @param loopFile the file of flags marking which lines to keep
+	 * @param d the number of skeleton points to sample down to
+	 * @param t the number of threads to compute with
+	 * @param batchSize the approximate number of bytes of text in each batch
+	 * @param inputFile where to write the down sampled input, or null to skip it
+	 * @param fastAngles true to approximate each angle with <code>FastAngle</code>, false to calculate it exactly
+	 * @return a <code>DataFile</code> containing the vector data
+	 * @throws IOException if a file cannot be read or written
+	 * @throws InterruptedException if interrupted while waiting for the computing threads
+	 * @see #parseInputLoopsParallel(File, File, int, int)
+	 * @see #calculateVectors(DataFile, boolean)
+	 */
+	private static DataFile calculateVectorsStreaming(File file, File loopFile, int d, int t, long batchSize, File inputFile, boolean fastAngles) throws IOException, InterruptedException {
+		int n = d - 1;
+		boolean[] flags = readFlags(loopFile);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		FileChannel fileChannel = randomAccessFile.getChannel();
+		ExecutorService pool = Executors.newFixedThreadPool(t);
+		DataFileWriter inputWriter = inputFile == null ? null : new DataFileWriter(inputFile, d * 2);
+		try {
+			ArrayList<ByteBuffer> chunks = mapChunks(fileChannel, batchSize);
+			System.out.println("\tStreaming text in " + chunks.size() + " batches...");
+			
+			//Every kept case is on a flagged line, so their count bounds the vectors
+			int flagged = 0;
+			for (boolean flag : flags)
+				if (flag)
+					flagged++;
+			DataFileBuilder output = new DataFileBuilder((long)flagged * n, flagged);
 			
-			//Down Sample to d
-			double s = (double)length/(double)(d-1);
-			double[] dX = new double[d];
-			double[] dY = new double[d];
-			double c = 0;
-			for (int i = 0; i < (d-1); i++) {
-				dX[i] = x[(int)c];
-				dY[i] = y[(int)c];
-				c += s;
+			ArrayList<Future<Integer>> counts = new ArrayList<Future<Integer>>();
+			ArrayDeque<Future<Batch>> pending = new ArrayDeque<Future<Batch>>();
+			//Batches already drained, for later jobs to work in
+			Queue<Batch> free = new ConcurrentLinkedQueue<Batch>();
+			long length = 0;
+			int firstLine = 0;
+			for (int i = 0; i < chunks.size() || !pending.isEmpty(); ) {
+				//Keep the pool busy, but bound the number of batches held in memory
+				if (i < chunks.size() && pending.size() < t * 2) {
+					//Count lines as far ahead as batches are in flight, so each chunk knows its first line number without every count queued first
+					while (counts.size() < chunks.size() && counts.size() <= i + t * 2)
+						counts.add(pool.submit(new CountJob(chunks.get(counts.size()))));
+					pending.add(pool.submit(new StreamJob(chunks.get(i).duplicate(), flags, firstLine, d, inputWriter != null, fastAngles, free)));
+					firstLine += get(counts.get(i));
+					i++;
+					continue;
+				}
+				//Drain the oldest batch, keeping file order, straight into the vectors
+				Batch batch = get(pending.poll());
+				if (inputWriter != null)
+					inputWriter.write(batch.inputs, 0, batch.caseCount * d * 2);
+				output.add(batch.vectors, 0, batch.caseCount * n);
+				length += (long)batch.caseCount * n;
+				free.add(batch);
 			}
-			//Always include tail
-			dX[d - 1] = x[length-1];
-			dY[d - 1] = y[length-1];
-			for (int i = 0; i < d; i++) {
-				output.add(dX[i]);
-				output.add(dY[i]);
+			int caseCount = (int)(length / n);
+			System.out.println("\tNumber of cases: " + caseCount);
+			DataFile vectors = output.build();
+			if (caseCount < flagged)
+				vectors = vectors.getSlice(0, caseCount);
+			return vectors;
+		} finally {
+			pool.shutdown();
+			randomAccessFile.close();
+			if (inputWriter != null)
+				inputWriter.close();
+		}
+	}
+	
+	/**
+	 * Reads the whitespace separated flags of an <code>isLoop.txt</code> file, one per skeleton line.
+	 * @param loopFile the file of flags
+	 * @return true for every line flagged 1
+	 * @throws IOException if the file cannot be read
+	 */
+	private static boolean[] readFlags(File loopFile) throws IOException {
+		boolean[] flags = new boolean[1024];
+		int flagCount = 0;
+		SkeletonParser loops = new SkeletonParser(loopFile);
+		while (loops.hasNext()) {
+			if (flagCount == flags.length)
+				flags = Arrays.copyOf(flags, flags.length * 2);
+			flags[flagCount++] = loops.nextInt() == 1;
+		}
+		loops.close();
+		return Arrays.copyOf(flags, flagCount);
+	}
+	
+	/**
+	 * Memory maps a text file as a list of chunks, each ending at a line boundary.
+	 * @param fileChannel the file
+	 * @param chunkSize the approximate size of each chunk in bytes
+	 * @return the mapped chunks, in file order
+	 * @throws IOException if the file cannot be mapped
+	 */
+	private static ArrayList<ByteBuffer> mapChunks(FileChannel fileChannel, long chunkSize) throws IOException {
+		long size = fileChannel.size();
+		ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		long from = 0;
+		while (from < size) {
+			long to = nextLineStart(fileChannel, Math.min(from + chunkSize, size));
+			if (to - from > Integer.MAX_VALUE)
+				throw new IOException("Line too long to map near byte " + from);
+			chunks.add(fileChannel.map(FileChannel.MapMode.READ_ONLY, from, to - from));
+			from = to;
+		}
+		return chunks;
+	}
+	
+	/**
+	 * Finds the start of the first line at or after a position in a file.
+	 * @param fileChannel the file
+	 * @param position the position to search from
+	 * @return the position just past the next newline, or the file size if there is none
+	 * @throws IOException if the file cannot be read
+	 */
+	private static long nextLineStart(FileChannel fileChannel, long position) throws IOException {
+		long size = fileChannel.size();
+		if (position == 0 || position >= size)
+			return position;
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		//The line containing position - 1 ends at the first newline from there
+		long offset = position - 1;
+		while (offset < size) {
+			probe.clear();
+			int read = fileChannel.read(probe, offset);
+			for (int i = 0; i < read; i++) {
+				if (probe.get(i) == '\n')
+					return offset + i + 1;
 			}
+			offset += read;
+		}
+		return size;
+	}
+	
+	/**
+	 * Waits for a job, and unwraps any exception it threw.
+	 * @param future the job
+	 * @return the result of the job
+	 * @throws IOException if the job threw an <code>IOException</code>
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new Error(cause);
 		}
+	}
+	
+	/**
+	 * Down samples parsed skeletons to a fixed number of points.
+	 * @param data the parsed skeletons
+	 * @param d the number of skeleton points to sample down to
+	 * @return the down sampled skeletons, stored as x1, y1, ..., xd, yd for each case
+	 */
+	private static double[] downsample(SkeletonBuffer data, int d) {
+		double[] output = new double[data.caseCount() * d * 2];
+		downsample(data, 0, data.caseCount(), d, output, 0);
 		return output;
 	}
 	
+	/**
+	 * Down samples a range of parsed skeletons into a preallocated output.
+	 * @param data the parsed skeletons
+	 * @param from the first case to down sample
+	 * @param to one past the last case to down sample
+	 * @param d the number of skeleton points to sample down to
+	 * @param output where to store the down sampled skeletons, as x1, y1, ..., xd, yd for each case
+	 * @param outputOffset where to start storing in <code>output</code>
+	 */
+	private static void downsample(SkeletonBuffer data, int from, int to, int d, double[] output, int outputOffset) {
+		int[] coordinates = data.coordinates();
+		for (int k = from; k < to; k++) {
+			downsample(coordinates, data.offset(k), data.points(k), d, output, outputOffset);
+			outputOffset += d * 2;
+		}
+	}
+	
 	/**
 	 * Calculates the angles between each consecutive skeleton point, and produces a <code>DataFile</code>.
 	 * @param data the DataFile containing the skeleton point data
+	 * @param fastAngles true to approximate each angle with <code>FastAngle</code>, false to calculate it exactly
 	 * @return a <code>DataFile</code> containing the vector data
 	 */
-	private static DataFile calculateVectors(DataFile data) {
+	static DataFile calculateVectors(DataFile data, boolean fastAngles) {
 		int n = (data.caseLength() / 2) - 1;
-		DataFile output = new DataFile(data.caseCount() * n,data.caseCount());
+		DataFileBuilder output = new DataFileBuilder((long)data.caseCount() * n,data.caseCount());
+		//Scratch buffers, reused for every case
+		double[] points = new double[(n + 1) * 2];
+		double[] vector = new double[n];
 		for (int i = 0; i < data.caseCount(); i++) {
-			double[] dX = new double[n+1];
-			double[] dY = new double[n+1];
-			for (int j = 0; j < n+1; j ++) {
-				dX[j] = data.next();
-				dY[j] = data.next();
-			}
-			//Calculate Vectors
-			double[] vector = new double[n];
-			double sum = 0;
-			for (int j = 0; j < n; j++) {
-				double yDiff = (dY[j] - dY[j + 1]);
-				double xDiff = (dX[j] - dX[j + 1]);
-				double angle;
-				if (xDiff == 0) {
-					if (yDiff > 0) {
-						angle = Math.PI/2;
-					} else {
-						angle = (Math.PI/2) * 3;
-					}
-				} else angle = Math.atan2(yDiff,xDiff);
-				vector[j] = angle;
-				sum += angle;
-			}
-			sum /= n;
-			
-			//Normalize (subtract mean angle, rotates to 0)
-			for (int j = 0; j < n; j++) {
-				vector[j] -= sum;
-				output.add(vector[j]);
-			}
+			data.getCase(i, points);
+			calculateVector(points, 0, n, vector, 0, fastAngles);
+			output.add(vector, 0, n);
+		}
+		return output.build();
+	}
+	
+	/**
+	 * Calculates the angles between each consecutive skeleton point on a pool of threads, and produces a <code>DataFile</code>.
+	 * Cases are handed out in fixed size batches as threads free up, and each batch is written straight to its place in the output.
+	 * @param data the DataFile containing the skeleton point data
+	 * @param t the number of threads to compute with
+	 * @param fastAngles true to approximate each angle with <code>FastAngle</code>, false to calculate it exactly
+	 * @return a <code>DataFile</code> containing the vector data
+	 * @throws IOException if a batch fails to read its input
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	private static DataFile calculateVectorsParallel(DataFile data, int t, boolean fastAngles) throws IOException, InterruptedException {
+		int n = (data.caseLength() / 2) - 1;
+		int caseCount = data.caseCount();
+		DataFileBuilder output = new DataFileBuilder((long)caseCount * n, caseCount);
+		ExecutorService pool = Executors.newFixedThreadPool(t);
+		try {
+			ArrayList<Future<Void>> jobs = new ArrayList<Future<Void>>();
+			for (int i = 0; i < caseCount; i += VECTOR_BATCH_SIZE)
+				jobs.add(pool.submit(new VectorJob(data, i, Math.min(VECTOR_BATCH_SIZE, caseCount - i), output, fastAngles)));
+			System.out.println("\tComputing " + jobs.size() + " batches on " + t + " threads...");
+			for (Future<Void> job : jobs)
+				get(job);
+		} finally {
+			pool.shutdown();
+		}
+		return output.build();
+	}
+	
+	/**
+	 * Calculates the angles for a batch of down sampled skeletons into a preallocated output.
+	 * @param points the skeletons, stored as x1, y1, ..., xn+1, yn+1 for each case
+	 * @param offset where the first skeleton starts in <code>points</code>
+	 * @param caseCount the number of skeletons
+	 * @param n the number of angles in each case, one less than the number of points
+	 * @param output where to store the angles
+	 * @param outputOffset where to start storing in <code>output</code>
+	 * @param fastAngles true to approximate each angle with <code>FastAngle</code>, false to calculate it exactly
+	 */
+	private static void calculateVectors(double[] points, int offset, int caseCount, int n, double[] output, int outputOffset, boolean fastAngles) {
+		for (int i = 0; i < caseCount; i++) {
+			calculateVector(points, offset, n, output, outputOffset, fastAngles);
+			offset += (n + 1) * 2;
+			outputOffset += n;
+		}
+	}
+	
+	/**
+	 * Down samples one skeleton to a fixed number of points, always keeping its tail.
+	 * @param coordinates the skeleton, stored as x1, y1, x2, y2, ...
+	 * @param offset where the skeleton starts in <code>coordinates</code>
+	 * @param length the number of points in the skeleton
+	 * @param d the number of skeleton points to sample down to
+	 * @param output where to store the down sampled points, as x1, y1, ..., xd, yd
+	 * @param outputOffset where to start storing in <code>output</code>
+	 */
+	private static void downsample(int[] coordinates, int offset, int length, int d, double[] output, int outputOffset) {
+		double s = (double)length/(double)(d-1);
+		double c = 0;
+		for (int i = 0; i < (d-1); i++) {
+			int index = offset + ((int)c * 2);
+			output[outputOffset++] = coordinates[index];
+			output[outputOffset++] = coordinates[index + 1];
+			c += s;
+		}
+		//Always include tail
+		output[outputOffset++] = coordinates[offset + (length - 1) * 2];
+		output[outputOffset] = coordinates[offset + (length - 1) * 2 + 1];
+	}
+	
+	/**
+	 * Calculates the angles between each consecutive point of one down sampled skeleton, less their mean.
+	 * @param points the skeleton, stored as x1, y1, ..., xn+1, yn+1
+	 * @param offset where the skeleton starts in <code>points</code>
+	 * @param n the number of angles, one less than the number of points
+	 * @param output where to store the angles
+	 * @param outputOffset where to start storing in <code>output</code>
+	 * @param fastAngles true to approximate each angle with <code>FastAngle</code>, false to calculate it exactly
+	 */
+	private static void calculateVector(double[] points, int offset, int n, double[] output, int outputOffset, boolean fastAngles) {
+		double sum = 0;
+		for (int j = 0; j < n; j++) {
+			int index = offset + (j * 2);
+			double yDiff = (points[index + 1] - points[index + 3]);
+			double xDiff = (points[index] - points[index + 2]);
+			double angle;
+			if (xDiff == 0) {
+				if (yDiff > 0) {
+					angle = Math.PI/2;
+				} else {
+					angle = (Math.PI/2) * 3;
+				}
+			} else if (fastAngles) {
+				angle = FastAngle.atan2(yDiff, xDiff);
+			} else angle = Math.atan2(yDiff,xDiff);
+			output[outputOffset + j] = angle;
+			sum += angle;
+		}
+		sum /= n;
+		
+		//Normalize (subtract mean angle, rotates to 0)
+		for (int j = 0; j < n; j++) {
+			output[outputOffset + j] -= sum;
 		}
-		return output;
 	}
 	
 	/**
@@ -331,31 +721,75 @@ public class Wrm2Eig {
 	 * @param data The vector data
 	 * @return a <code>Matrix</code> of eigenvectors (components) ordered by greatest eigenvalue
 	 */
-	private static DataFile calculatePrincipalComponents(DataFile data) {
+	static DataFile calculatePrincipalComponents(DataFile data) {
+		return calculatePrincipalComponents(covar(data));
+	}
+	
+	/**
+	 * Calculates eigenvectors from the covariance matrix of the vector data, accumulated in parallel,
+	 * then produces a <code>Matrix</code> of eigenvectors ordered by eigenvalue.
+	 * @param data The vector data
+	 * @param t the number of threads to calculate the covariance on
+	 * @return a <code>Matrix</code> of eigenvectors (components) ordered by greatest eigenvalue
+	 * @throws IOException if a job fails
+	 * @throws InterruptedException if interrupted while waiting for the jobs
+	 * @see #covar(DataFile, int)
+	 */
+	private static DataFile calculatePrincipalComponents(DataFile data, int t) throws IOException, InterruptedException {
+		return calculatePrincipalComponents(covar(data, t));
+	}
+	
+	/**
+	 * Calculates only the leading eigenvectors of the covariance matrix of the vector data, accumulated in parallel,
+	 * with a truncated eigen-solver, and reports its convergence.
+	 * @param data The vector data
+	 * @param t the number of threads to calculate the covariance on
+	 * @param k the number of components to calculate
+	 * @return a <code>Matrix</code> of the <code>k</code> eigenvectors (components) with the greatest eigenvalues, in order
+	 * @throws IOException if a job fails
+	 * @throws InterruptedException if interrupted while waiting for the jobs
+	 * @see com.kylelmoy.wrm2eig.TruncatedEigen
+	 */
+	private static DataFile calculatePrincipalComponents(DataFile data, int t, int k) throws IOException, InterruptedException {
 		int n = data.caseLength();
-		int f = data.caseCount();
-		Matrix covariance = covar(data);
-		Matrix eigenVector = covariance.eig().getV();
-		Matrix eigenValue = covariance.eig().getD();
-		ArrayList<EigenPair> pq = new ArrayList<EigenPair>();
-		for (int i = 0; i < n; i ++) {
-			double value = eigenValue.get(i, i);
-			double[] vector = new double[n];
-			for (int j = 0; j < n; j++) {
-				vector[j] = eigenVector.get(j, i);
-			}
-			pq.add(new EigenPair(value, vector));
-		}
-		Collections.sort(pq);
-		double[] principalComponents = new double[n*n];
-		for (int i = 0; i < n; i ++) {
-			for (int j = 0; j < n; j ++) {
-				principalComponents[(i*n) + j] = pq.get(i).vector[j];
-			}
-		}
-		//Matrix pc = new Matrix(principalComponents);
-		//pc.print(n, n);
-		return new DataFile(principalComponents,n);
+		TruncatedEigen eigen = new TruncatedEigen(n, k);
+		boolean converged = eigen.decompose(covar(data, t).getArray());
+		System.out.println("\t" + (converged ? "Converged" : "Did not converge") + " in " + eigen.steps() + " steps, residual " + eigen.residual());
+		double[] principalComponents = eigen.vectors(k, new double[k*n]);
+		return DataFile.wrap(principalComponents,n);
+	}
+	
+	/**
+	 * Approximates the leading eigenvectors of the covariance matrix of the vector data, with a randomized range finder
+	 * that reads the vectors in a few passes and never forms the covariance matrix.
+	 * @param data The vector data
+	 * @param k the number of components to calculate
+	 * @param oversampling the number of random directions beyond <code>k</code>
+	 * @param powerIterations the number of extra passes over the data
+	 * @return a <code>Matrix</code> of the <code>k</code> approximate eigenvectors (components) with the greatest eigenvalues, in order
+	 * @see com.kylelmoy.wrm2eig.RandomizedPca
+	 */
+	static DataFile calculatePrincipalComponentsRandomized(DataFile data, int k, int oversampling, int powerIterations) {
+		int n = data.caseLength();
+		RandomizedPca pca = new RandomizedPca(n, k, oversampling, powerIterations);
+		pca.decompose(data);
+		System.out.println("\tApproximated in " + pca.passes() + " passes");
+		double[] principalComponents = pca.vectors(k, new double[k*n]);
+		return DataFile.wrap(principalComponents,n);
+	}
+	
+	/**
+	 * Produces a <code>Matrix</code> of the eigenvectors of a covariance matrix, ordered by eigenvalue.
+	 * The matrix is decomposed once, and the eigenvectors copied straight into the components in order.
+	 * @param covariance the covariance matrix
+	 * @return a <code>Matrix</code> of eigenvectors (components) ordered by greatest eigenvalue
+	 */
+	private static DataFile calculatePrincipalComponents(Matrix covariance) {
+		int n = covariance.getRowDimension();
+		SymmetricEigen eigen = new SymmetricEigen(n);
+		eigen.decompose(covariance.getArray());
+		double[] principalComponents = eigen.vectors(n, new double[n*n]);
+		return DataFile.wrap(principalComponents,n);
 	}
 	
 	/**
@@ -367,20 +801,13 @@ public class Wrm2Eig {
 	 */
 	private static DataFile calculateAmplitudes(DataFile vectors, DataFile components, int numComponents) {
 		//Jama is such a worthless library
-		Basic2DMatrix pc = new Basic2DMatrix(components.array());
-		org.la4j.matrix.Matrix data = (new Basic2DMatrix(vectors.array())).transpose();
-		org.la4j.matrix.Matrix feature = pc.sliceTopLeft(numComponents, pc.columns());
+		org.la4j.matrix.Matrix feature = new DataFileMatrix(components).sliceTopLeft(numComponents, components.caseLength());
+		//feature * data' is computed as (data * feature')', reading the vectors a case at a time and writing the product straight into a DataFile
+		org.la4j.matrix.Matrix data = new DataFileMatrix(vectors);
 		//System.out.println(feature);
 		//System.out.println(feature.rows() + "x" + feature.columns() + " * " + data.rows() + "x" + data.columns());
-		org.la4j.matrix.Matrix transdata = feature.multiply(data);
-		double[] matrix = new double[transdata.rows() * transdata.columns()];
-		int c = 0;
-		for (int j = 0; j < transdata.rows(); j++) {
-			for (int i = 0; i < transdata.columns(); i++) {
-				matrix[c++] = transdata.get(j, i);
-			}
-		}
-		return new DataFile(matrix,transdata.columns());
+		DataFileMatrixBuilder transdata = (DataFileMatrixBuilder)data.multiply(feature.transpose(), DataFileMatrixBuilder.factory(data.rows(), true));
+		return transdata.build();
 	}
 	
 	/**
@@ -391,59 +818,53 @@ public class Wrm2Eig {
 	 * @return The transformed data
 	 */
 	private static DataFile projectData(DataFile transformed, DataFile components, int numComponents) {
-		Basic2DMatrix pc = new Basic2DMatrix(components.array());
-		org.la4j.matrix.Matrix feature = pc.sliceTopLeft(numComponents, pc.columns());
-		org.la4j.matrix.Matrix trans = new Basic2DMatrix(transformed.array());
-		org.la4j.matrix.Matrix projected = feature.transpose().multiply(trans);
-		projected = projected.transpose();
-		double[] matrix = new double[projected.rows() * projected.columns()];
-		int c = 0;
-		for (int j = 0; j < projected.rows(); j++) {
-			for (int i = 0; i < projected.columns(); i++) {
-				matrix[c++] = projected.get(j, i);
-			}
-		}
-		return new DataFile(matrix,projected.rows());
+		org.la4j.matrix.Matrix feature = new DataFileMatrix(components).sliceTopLeft(numComponents, components.caseLength());
+		//(feature' * trans)' is computed as trans' * feature, so the product is written out already transposed
+		org.la4j.matrix.Matrix trans = new DataFileMatrix(transformed, true);
+		DataFileMatrixBuilder projected = (DataFileMatrixBuilder)trans.multiply(feature, DataFileMatrixBuilder.factory(trans.rows(), false));
+		return projected.build();
 	}
 	
 	//HELPER METHODS
 	/**
-	 * Calculates a covariance matrix for the given <code>DataFile</code>
+	 * Calculates a covariance matrix for the given <code>DataFile</code>, in either layout.
 	 * @param data the <code>DataFile</code> to calculate on
 	 * @return the covariance <code>Matrix</code>
+	 * @see com.kylelmoy.wrm2eig.Covariance
 	 */
-	private static Matrix covar(DataFile data) {
-		int n = data.caseLength();
-		double[][] covar = new double[n][n];
-		for (int x = 0; x < n; x++) {
-			for (int y = 0; y < n; y++) {
-				if (covar[y][x] != 0) {
-					covar[x][y] = covar[y][x];
-					continue;
-				}
-				double xMean = mean(data, x);
-				double yMean = mean(data, y);
-				double sum = 0;
-				for (int i = 0; i < data.caseCount(); i++) {
-					sum += (data.get((i * n) + x) - xMean) * (data.get((i * n) + y) - yMean);
-				}
-				covar[x][y] = sum / (double)(data.caseCount()-1);
-			}
-		}
-		return new Matrix(covar);
+	static Matrix covar(DataFile data) {
+		return Covariance.of(data);
 	}
+	
 	/**
-	 * Calculates the mean of a column in a <code>DataFile</code>
-	 * @param data the data to calculate on
-	 * @param col the column
-	 * @return the mean as a double
+	 * Calculates a covariance matrix for the given <code>DataFile</code>, in either layout, on several threads.
+	 * The cases are split into <code>t</code> contiguous ranges, each accumulated on its own thread, and the partial covariances
+	 * merged in order; the result is the same for the same number of threads, and differs from <code>covar(DataFile)</code> only by rounding.
+	 * @param data the <code>DataFile</code> to calculate on
+	 * @param t the number of threads
+	 * @return the covariance <code>Matrix</code>
+	 * @throws IOException if a job fails
+	 * @throws InterruptedException if interrupted while waiting for the jobs
+	 * @see com.kylelmoy.wrm2eig.Covariance#merge(Covariance)
 	 */
-	private static double mean(DataFile data, int col) {
-		int n = data.caseLength();
-		double sum = 0;
-		for (int i = 0; i < data.caseCount(); i++) {
-			sum += data.get((i * n) + col);
+	static Matrix covar(DataFile data, int t) throws IOException, InterruptedException {
+		int caseCount = data.caseCount();
+		if (t <= 1 || caseCount < t)
+			return covar(data);
+		Covariance covariance = new Covariance(data.caseLength());
+		ExecutorService pool = Executors.newFixedThreadPool(t);
+		try {
+			ArrayList<Future<Covariance>> jobs = new ArrayList<Future<Covariance>>();
+			for (int i = 0; i < t; i++) {
+				int from = (int)((long)caseCount * i / t);
+				int to = (int)((long)caseCount * (i + 1) / t);
+				jobs.add(pool.submit(new CovarianceJob(data, from, to - from)));
+			}
+			for (Future<Covariance> job : jobs)
+				covariance.merge(get(job));
+		} finally {
+			pool.shutdown();
 		}
-		return sum / data.caseCount();
+		return covariance.matrix();
 	}
 }
@@ -0,0 +1,309 @@
+package com.kylelmoy.wrm2eig;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lossless compression of a chunk of frames, XOR encoding every data point against a prediction of it,
+ * after the time series compression of Facebook's Gorilla.
+ * The prediction is the same column of the previous frame; consecutive frames of a worm change little,
+ * so a value and its prediction share their sign, exponent and leading mantissa bits, and only the bits that differ are stored. Where frames are sampled too far apart for that, neighbouring points along the worm
+ * are closer, so each chunk is also tried against the previous value within its frame, and the smaller kept; a leading bit marks which.
+ * Every value is then stored as:
+ * <pre>
+ * 0                                   the value equals the prediction
+ * 10 bits                             the differing bits fit within the window of the column's previous value
+ * 11 leading(5) length-1(6) bits      a new window, with its number of leading zeros and its length
+ * </pre>
+ * Single precision data is encoded the same way on 32-bit words, with a 5-bit length.
+ * The first frame of a chunk is predicted from zero, so each chunk decodes on its own.
+ * Bits are packed most significant first into 64-bit words. An instance keeps its buffers between chunks, and is not thread safe.
+ * @author Kyle Moy
+ * @see com.kylelmoy.wrm2eig.ChunkedDataFile
+ */
+class XorCodec {
+	/**
+	 * The number of data points in each frame
+	 */
+	private final int frameLength;
+
+	/**
+	 * The bits of the previous value of every column
+	 */
+	private final long[] previous;
+
+	/**
+	 * The leading zeros of the current window of every column
+	 */
+	private final int[] leading;
+
+	/**
+	 * The trailing zeros of the current window of every column, or -1 for no window yet
+	 */
+	private final int[] trailing;
+
+	/**
+	 * The packed bits
+	 */
+	private long[] words = new long[0];
+
+	/**
+	 * The number of words loaded to be read
+	 */
+	private int wordCount;
+
+	/**
+	 * The word being read or written
+	 */
+	private int word;
+
+	/**
+	 * The number of bits used of the current word
+	 */
+	private int bit;
+
+	/**
+	 * Construct a new <code>XorCodec</code>.
+	 * @param frameLength the number of data points in each frame
+	 */
+	XorCodec(int frameLength) {
+		this.frameLength = frameLength;
+		previous = new long[frameLength];
+		leading = new int[frameLength];
+		trailing = new int[frameLength];
+	}
+
+	/**
+	 * @param count a number of data points
+	 * @param precision the precision they are stored in
+	 * @return The most bytes <code>count</code> data points can encode to
+	 */
+	static int maxEncodedSize(int count, DataFile.Precision precision) {
+		int width = precision.size * 8;
+		long bits = (long)count * (2 + 5 + Integer.numberOfTrailingZeros(width) + width);
+		return (int)((bits + 63) / 64 * 8);
+	}
+
+	/**
+	 * Encodes whole frames of double precision data, with whichever predictor stores them smaller.
+	 * @param data the frames
+	 * @param length the number of data points to encode
+	 * @param output the buffer to encode into, at least <code>maxEncodedSize(length, DOUBLE)</code> long; it is cleared, and flipped when done
+	 */
+	void encode(double[] data, int length, ByteBuffer output) {
+		int size = 0;
+		for (int across = 1; across >= 0; across--) {
+			start(maxEncodedSize(length, DataFile.Precision.DOUBLE) / 8);
+			write(across, 1);
+			int stride = across == 1 ? frameLength : 1;
+			for (int i = 0, column = 0; i < length; i++) {
+				encode(column, Double.doubleToRawLongBits(data[i]), 64);
+				if (++column == stride)
+					column = 0;
+			}
+			if (across == 1 || words() < size)
+				size = finish(output);
+		}
+		output.limit(size * 8);
+	}
+
+	/**
+	 * Encodes whole frames of single precision data, with whichever predictor stores them smaller.
+	 * @param data the frames
+	 * @param length the number of data points to encode
+	 * @param output the buffer to encode into, at least <code>maxEncodedSize(length, FLOAT)</code> long; it is cleared, and flipped when done
+	 */
+	void encode(float[] data, int length, ByteBuffer output) {
+		int size = 0;
+		for (int across = 1; across >= 0; across--) {
+			start(maxEncodedSize(length, DataFile.Precision.FLOAT) / 8);
+			write(across, 1);
+			int stride = across == 1 ? frameLength : 1;
+			for (int i = 0, column = 0; i < length; i++) {
+				encode(column, Float.floatToRawIntBits(data[i]) & 0xFFFFFFFFL, 32);
+				if (++column == stride)
+					column = 0;
+			}
+			if (across == 1 || words() < size)
+				size = finish(output);
+		}
+		output.limit(size * 8);
+	}
+
+	/**
+	 * Decodes whole frames of double precision data.
+	 * @param input the encoded chunk, from its position to its limit
+	 * @param data the array to decode into
+	 * @param length the number of data points encoded
+	 * @throws Error if the chunk is truncated
+	 */
+	void decode(ByteBuffer input, double[] data, int length) {
+		load(input);
+		int stride = read(1) == 1 ? frameLength : 1;
+		for (int i = 0, column = 0; i < length; i++) {
+			data[i] = Double.longBitsToDouble(decode(column, 64));
+			if (++column == stride)
+				column = 0;
+		}
+	}
+
+	/**
+	 * Decodes whole frames of single precision data.
+	 * @param input the encoded chunk, from its position to its limit
+	 * @param data the array to decode into
+	 * @param length the number of data points encoded
+	 * @throws Error if the chunk is truncated
+	 */
+	void decode(ByteBuffer input, float[] data, int length) {
+		load(input);
+		int stride = read(1) == 1 ? frameLength : 1;
+		for (int i = 0, column = 0; i < length; i++) {
+			data[i] = Float.intBitsToFloat((int)decode(column, 32));
+			if (++column == stride)
+				column = 0;
+		}
+	}
+
+	/**
+	 * Encodes a value against the previous value of its column.
+	 * @param column the column of the value
+	 * @param bits the bits of the value
+	 * @param width the number of bits in a value, 64 or 32
+	 */
+	private void encode(int column, long bits, int width) {
+		long xor = bits ^ previous[column];
+		previous[column] = bits;
+		if (xor == 0) {
+			write(0, 1);
+			return;
+		}
+		int lead = Math.min(31, Long.numberOfLeadingZeros(xor) - (64 - width));
+		int trail = Long.numberOfTrailingZeros(xor);
+		if (trailing[column] >= 0 && lead >= leading[column] && trail >= trailing[column]) {
+			write(2, 2);
+			write(xor >>> trailing[column], width - leading[column] - trailing[column]);
+			return;
+		}
+		int length = width - lead - trail;
+		write(3, 2);
+		write(lead, 5);
+		write(length - 1, width == 64 ? 6 : 5);
+		write(xor >>> trail, length);
+		leading[column] = lead;
+		trailing[column] = trail;
+	}
+
+	/**
+	 * Decodes a value against the previous value of its column.
+	 * @param column the column of the value
+	 * @param width the number of bits in a value, 64 or 32
+	 * @return the bits of the value
+	 */
+	private long decode(int column, int width) {
+		if (read(1) != 0) {
+			if (read(1) != 0) {
+				leading[column] = (int)read(5);
+				int length = (int)read(width == 64 ? 6 : 5) + 1;
+				trailing[column] = width - leading[column] - length;
+			}
+			int length = width - leading[column] - trailing[column];
+			previous[column] ^= read(length) << trailing[column];
+		}
+		return previous[column];
+	}
+
+	/**
+	 * Resets the state of every column, and the bits, before a chunk.
+	 * @param capacity the number of words needed
+	 */
+	private void start(int capacity) {
+		if (words.length < capacity)
+			words = new long[capacity];
+		for (int x = 0; x < frameLength; x++) {
+			previous[x] = 0;
+			trailing[x] = -1;
+		}
+		word = 0;
+		bit = 0;
+		words[0] = 0;
+	}
+
+	/**
+	 * @return The number of words written
+	 */
+	private int words() {
+		return bit == 0 ? word : word + 1;
+	}
+
+	/**
+	 * Copies the packed bits to a buffer.
+	 * @param output the buffer
+	 * @return the number of words copied
+	 */
+	private int finish(ByteBuffer output) {
+		int count = words();
+		output.clear();
+		output.asLongBuffer().put(words, 0, count);
+		return count;
+	}
+
+	/**
+	 * Copies packed bits from a buffer, and resets the state of every column.
+	 * @param input the buffer
+	 */
+	private void load(ByteBuffer input) {
+		int count = input.remaining() / 8;
+		//One spare word, so a read never runs past the array
+		start(count + 1);
+		input.asLongBuffer().get(words, 0, count);
+		words[count] = 0;
+		wordCount = count;
+	}
+
+	/**
+	 * Appends bits.
+	 * @param value the bits, in the low <code>n</code> bits
+	 * @param n the number of bits, 1 to 64
+	 */
+	private void write(long value, int n) {
+		if (n < 64)
+			value &= (1L << n) - 1;
+		int free = 64 - bit;
+		if (n < free) {
+			words[word] |= value << (free - n);
+			bit += n;
+		} else {
+			int rest = n - free;
+			words[word] |= value >>> rest;
+			word++;
+			if (word < words.length)
+				words[word] = rest == 0 ? 0 : value << (64 - rest);
+			bit = rest;
+		}
+	}
+
+	/**
+	 * Reads the next bits.
+	 * @param n the number of bits, 1 to 64
+	 * @return the bits, in the low <code>n</code> bits
+	 * @throws Error if the bits run past the end of the chunk
+	 */
+	private long read(int n) {
+		if (word >= wordCount)
+			throw new Error("Truncated chunk");
+		int free = 64 - bit;
+		long value;
+		if (n < free) {
+			value = (words[word] << bit) >>> (64 - n);
+			bit += n;
+		} else {
+			int rest = n - free;
+			value = free == 64 ? words[word] : words[word] & ((1L << free) - 1);
+			if (++word == wordCount && rest > 0)
+				throw new Error("Truncated chunk");
+			if (rest > 0)
+				value = (value << rest) | (words[word] >>> (64 - rest));
+			bit = rest;
+		}
+		return value;
+	}
+}
@@ -11,14 +11,14 @@ import com.kylelmoy.wrm2eig.DataFile;
 public class test {
 
 	public static void main(String[] args) throws IOException {
-		DataFile vectors = new DataFile(new File("data/vectors.dat"));
-		DataFile proj = new DataFile(new File("data/projected.dat"));
+		DataFile vectors = DataFile.map(new File("data/vectors.dat"));
+		DataFile proj = DataFile.map(new File("data/projected.dat"));
 		RandomAccessFile randomAccessFile = new RandomAccessFile(new File("data/48.dat"), "r");
 		FileChannel fileChannel = randomAccessFile.getChannel();
 		MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
 		DoubleBuffer doublebuffer = mappedByteBuffer.asDoubleBuffer();
 		for (int i = 0; i < 10; i ++) {
-			System.out.println(vectors.next() + " == " + proj.next());
+			System.out.println(vectors.get(i) + " == " + proj.get(i));
 		}
 	}
 